@@ -0,0 +1,204 @@
+package com.xoba.ngaro.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.xoba.ngaro.CasketServer;
+import com.xoba.ngaro.InputManager;
+import com.xoba.ngaro.NGaroTemplate;
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.PagedMemory;
+import com.xoba.ngaro.inf.IReplIOManager;
+
+/**
+ * A load test of CasketServer against booting a vm for each request, as CGI
+ * does, on benchmarks/casket.rx saved as a CGI image.
+ *
+ * Each is served on a port of its own in this JVM, with as many threads, and
+ * the same requests are sent to both by as many clients: a greeting, a table,
+ * and a POSTed form, in turn. The CGI side loads the saved image from disk for
+ * every request, which is what running it under a web server costs, less
+ * starting a process.
+ *
+ * Arguments are the number of requests (2000), clients (4) and threads
+ * serving (the number of processors).
+ */
+public class CasketLoad {
+
+	private static final String[] EXPECT = { "Hello, world", "<td>400</td>", "name=ngaro" };
+
+	public static void main(String[] args) throws Exception {
+		final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		// otherwise the server's response headers wait for an ack
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		final File image = new File(Workloads.imageDir(), "casket.img");
+		Workloads.prepare("casket", image, "files.rx", "introspection.rx", "casket.rx");
+
+		CasketServer pooled = new CasketServer(NGaroTemplate.boot(image, Workloads.MEMORY_SIZE, null),
+				new InetSocketAddress("127.0.0.1", 0), threads);
+		pooled.start();
+		HttpServer cgi = cgi(image, threads);
+		cgi.start();
+		try {
+			for (int round = 0; round < 2; round++) {
+				final String label = round == 0 ? " (warmup)" : "";
+				run("cgi" + label, cgi.getAddress(), requests / (round == 0 ? 4 : 1), clients);
+				run("pooled" + label, pooled.getAddress(), requests / (round == 0 ? 4 : 1), clients);
+			}
+		} finally {
+			pooled.close();
+			cgi.stop(0);
+			((ExecutorService) cgi.getExecutor()).shutdown();
+		}
+	}
+
+	/**
+	 * a server that loads the image into a new vm for each request, and sends
+	 * what it writes as the body
+	 */
+	private static HttpServer cgi(final File image, int threads) throws IOException {
+		HttpServer s = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		s.setExecutor(Executors.newFixedThreadPool(threads));
+		s.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					final byte[] body = read(exchange.getRequestBody());
+					final Map<String, String> env = new HashMap<String, String>();
+					env.put("REQUEST_METHOD", exchange.getRequestMethod());
+					env.put("PATH_INFO", exchange.getRequestURI().getRawPath());
+					final String query = exchange.getRequestURI().getRawQuery();
+					env.put("QUERY_STRING", body.length > 0 ? new String(body, StandardCharsets.ISO_8859_1)
+							: query == null ? "" : query);
+					final Console console = new Console();
+					NGaroVM vm = new NGaroVM(128, 1024, PagedMemory.load(image, true, Workloads.MEMORY_SIZE),
+							new InputManager(), console, null);
+					vm.setEnvironment(env);
+					vm.run();
+					final byte[] out = console.out.toByteArray();
+					exchange.sendResponseHeaders(200, out.length);
+					final OutputStream o = exchange.getResponseBody();
+					o.write(out);
+					o.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		return s;
+	}
+
+	private static final class Console implements IReplIOManager {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		@Override
+		public void includeFile(String name) {
+			throw new UnsupportedOperationException(name);
+		}
+
+		@Override
+		public int read() {
+			return -1;
+		}
+
+		@Override
+		public void write(int c) {
+			out.write(c);
+		}
+	}
+
+	private static void run(String name, InetSocketAddress address, final int requests, int clients)
+			throws Exception {
+		final String base = "http://127.0.0.1:" + address.getPort();
+		final long[] times = new long[requests];
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		Future<?>[] futures = new Future<?>[clients];
+		final long t0 = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			futures[i] = pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					int i;
+					while ((i = next.getAndIncrement()) < requests) {
+						final long t = System.nanoTime();
+						request(base, i % EXPECT.length);
+						times[i] = System.nanoTime() - t;
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		final long elapsed = System.nanoTime() - t0;
+		pool.shutdown();
+		Arrays.sort(times);
+		System.out.printf("%-16s %6d requests, %d clients: %8.1f requests/s, p50 %6.2f ms, p99 %6.2f ms%n", name,
+				requests, clients, 1e9 * requests / elapsed, times[requests / 2] / 1e6,
+				times[Math.min(requests - 1, (int) (0.99 * requests))] / 1e6);
+	}
+
+	private static void request(String base, int kind) throws IOException {
+		HttpURLConnection c;
+		switch (kind) {
+		case 0:
+			c = (HttpURLConnection) new URL(base + "/hello/world").openConnection();
+			break;
+		case 1:
+			c = (HttpURLConnection) new URL(base + "/squares").openConnection();
+			break;
+		default:
+			c = (HttpURLConnection) new URL(base + "/form").openConnection();
+			c.setRequestMethod("POST");
+			c.setDoOutput(true);
+			c.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+			final OutputStream o = c.getOutputStream();
+			o.write("name=ngaro&lang=retro".getBytes(StandardCharsets.US_ASCII));
+			o.close();
+		}
+		final String body = new String(read(c.getInputStream()), StandardCharsets.ISO_8859_1);
+		if (c.getResponseCode() != 200 || !body.contains(EXPECT[kind])) {
+			throw new IOException(c.getResponseCode() + " " + body);
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		int n;
+		try {
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+}
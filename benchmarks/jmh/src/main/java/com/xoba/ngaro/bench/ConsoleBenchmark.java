@@ -0,0 +1,117 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.ConsoleOutput;
+import com.xoba.ngaro.InputManager;
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.ReplIOManager;
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Output-heavy scripts run through ReplIOManager to an autoflushing
+ * PrintStream on /dev/null, standing in for System.out: a character at a time
+ * straight into the PrintStream as ReplIOManager used to, through a
+ * ConsoleOutput, and through a ConsoleOutput with its own writer thread.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ConsoleBenchmark {
+
+	@Param({ "examples/rosetta_code/99_bottles_of_beer.rx", "test/core.rx" })
+	public String script;
+
+	@Param({ "PRINTSTREAM", "BUFFERED", "THREAD" })
+	public String console;
+
+	@Param({ "SWITCH", "JIT" })
+	public NGaroVM.Engine engine;
+
+	private PrintStream out;
+	private IMemory image;
+	private IMemory memory;
+
+	/**
+	 * the former ReplIOManager.write()
+	 */
+	static class PrintStreamIO extends ReplIOManager {
+
+		private final PrintStream out;
+
+		PrintStreamIO(PrintStream out) {
+			super(new ConsoleOutput(out, 1, 0, false));
+			this.out = out;
+		}
+
+		@Override
+		public void write(int c) {
+			out.write(c);
+		}
+
+		@Override
+		public void flush() {
+			out.flush();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void load() throws IOException {
+		out = new PrintStream(new FileOutputStream("/dev/null"), true);
+		image = NGaroVM.initializeMemory(new File(Workloads.home(), "retroImage"), true, Workloads.MEMORY_SIZE);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		out.close();
+	}
+
+	@Setup(Level.Invocation)
+	public void fresh() {
+		memory = Workloads.copy(image);
+	}
+
+	@Benchmark
+	public IMemory run() throws IOException {
+		ConsoleOutput buffer = null;
+		ReplIOManager rm;
+		if (console.equals("PRINTSTREAM")) {
+			rm = new PrintStreamIO(out);
+		} else {
+			buffer = new ConsoleOutput(out, ConsoleOutput.DEFAULT_SIZE, ConsoleOutput.DEFAULT_INTERVAL,
+					console.equals("THREAD"));
+			rm = new ReplIOManager(buffer);
+		}
+		rm.includeFile(new File(Workloads.home(), script).getPath());
+		// 99_bottles_of_beer.rx leaves a cell or two behind for each verse
+		NGaroVM vm = new NGaroVM(1024, 1024, memory, new InputManager(), rm, null);
+		vm.setEngine(engine);
+		vm.run();
+		if (buffer != null) {
+			buffer.close();
+		}
+		return memory;
+	}
+
+}
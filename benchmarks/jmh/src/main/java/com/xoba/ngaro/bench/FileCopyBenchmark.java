@@ -0,0 +1,100 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.InputManager;
+
+/**
+ * Copies a file of the given number of megabytes a byte at a time, as
+ * files.rx does through port 4, with InputManager's buffered handles and with
+ * the RandomAccessFile it used to call directly for every byte.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class FileCopyBenchmark {
+
+	@Param({ "100" })
+	public int megabytes;
+
+	private File source;
+	private File target;
+
+	@Setup
+	public void create() throws IOException {
+		source = File.createTempFile("copy", ".in");
+		target = File.createTempFile("copy", ".out");
+		byte[] b = new byte[1024 * 1024];
+		new Random(0).nextBytes(b);
+		RandomAccessFile out = new RandomAccessFile(source, "rw");
+		try {
+			for (int i = 0; i < megabytes; i++) {
+				out.write(b);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void delete() {
+		source.delete();
+		target.delete();
+	}
+
+	@Benchmark
+	public int buffered() {
+		InputManager im = new InputManager();
+		int in = im.rxOpenFile(0, source.getPath());
+		int out = im.rxOpenFile(1, target.getPath());
+		int n = im.rxGetFileSize(in);
+		for (int i = 0; i < n; i++) {
+			im.rxWriteFile(out, im.rxReadFile(in));
+		}
+		im.rxCloseFile(in);
+		im.rxCloseFile(out);
+		return n;
+	}
+
+	/**
+	 * the former InputManager.rxReadFile() and rxWriteFile()
+	 */
+	@Benchmark
+	public int unbuffered() throws IOException {
+		RandomAccessFile in = new RandomAccessFile(source, "r");
+		RandomAccessFile out = new RandomAccessFile(target, "rw");
+		try {
+			out.setLength(0);
+			int n = (int) in.length();
+			for (int i = 0; i < n; i++) {
+				int c = in.read();
+				out.write(c < 0 ? 0 : c);
+			}
+			return n;
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.NGaroTemplate;
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.PagedMemory;
+import com.xoba.ngaro.bench.Workloads.QuietIO;
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * What it takes to get the memory for a new vm: forking it from an
+ * NGaroTemplate of retroImage, against loading retroImage into a fresh
+ * Workloads.MEMORY_SIZE cell Memory as NGaroDriver does.
+ *
+ * main() reports the other half, the memory each forked vm ends up with to
+ * itself after running every workload.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ForkBenchmark {
+
+	private final File image = new File(Workloads.home(), "retroImage");
+
+	private NGaroTemplate template;
+
+	@Setup
+	public void boot() throws IOException {
+		template = NGaroTemplate.boot(image, Workloads.MEMORY_SIZE, null);
+	}
+
+	@Benchmark
+	public IMemory fork() {
+		return template.fork();
+	}
+
+	@Benchmark
+	public IMemory load() throws IOException {
+		return NGaroVM.initializeMemory(image, true, Workloads.MEMORY_SIZE);
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int children = 100;
+		for (String name : args.length > 0 ? args : Workloads.NAMES) {
+			NGaroTemplate t = NGaroTemplate.boot(new File(Workloads.imageDir(), name + ".img"),
+					Workloads.MEMORY_SIZE, null);
+			long forking = 0;
+			long pages = 0;
+			for (int i = 0; i < children; i++) {
+				long t0 = System.nanoTime();
+				PagedMemory m = t.fork();
+				forking += System.nanoTime() - t0;
+				Workloads.createVM(m, new QuietIO(), NGaroVM.Engine.SWITCH).run();
+				pages += m.getPrivatePages();
+			}
+			System.out.printf("%-6s fork %6.1f us, %5.1f private pages = %7.1f KB per child (Memory: %d KB)%n", name,
+					forking / 1000.0 / children, (double) pages / children,
+					4.0 * PagedMemory.PAGE_SIZE * pages / children / 1024, 4 * Workloads.MEMORY_SIZE / 1024);
+		}
+	}
+
+}
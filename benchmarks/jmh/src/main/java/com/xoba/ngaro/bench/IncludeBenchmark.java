@@ -0,0 +1,153 @@
+package com.xoba.ngaro.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.InputManager;
+import com.xoba.ngaro.Memory;
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.NGaroVM.ISaveImageController;
+import com.xoba.ngaro.bench.Workloads.QuietIO;
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Includes every library in library/, each after the ones it needs, on
+ * retroImage and on an image with library/fastFind.rx loaded, so that find
+ * looks names up in the vm's index instead of walking the dictionary.
+ *
+ * double.rx never closes its doc{ and is left out, as are fastConsole.rx and
+ * fastFind.rx; forth.rx changes how everything after it is parsed, so it comes
+ * last.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class IncludeBenchmark {
+
+	@Param({ "true", "false" })
+	public boolean fastFind;
+
+	@Param({ "SWITCH", "JIT" })
+	public NGaroVM.Engine engine;
+
+	private File script;
+	private IMemory image;
+	private IMemory memory;
+
+	@Setup(Level.Trial)
+	public void prepare() throws IOException {
+		File library = new File(Workloads.home(), "library");
+		String[] names = library.list();
+		Arrays.sort(names);
+		List<String> order = new ArrayList<String>();
+		for (String name : names) {
+			if (name.endsWith(".rx") && !name.equals("double.rx") && !name.startsWith("fast")
+					&& !name.equals("forth.rx")) {
+				add(library, name, order);
+			}
+		}
+		add(library, "forth.rx", order);
+		script = File.createTempFile("include", ".rx");
+		PrintWriter rx = new PrintWriter(script);
+		try {
+			for (String name : order) {
+				rx.println("include " + new File(library, name).getAbsolutePath());
+			}
+			rx.println("bye");
+		} finally {
+			rx.close();
+		}
+		File base = new File(Workloads.home(), "retroImage");
+		if (fastFind) {
+			final File saved = File.createTempFile("fastFind", ".img");
+			File load = File.createTempFile("fastFind", ".rx");
+			PrintWriter out = new PrintWriter(load);
+			try {
+				out.println("include " + new File(library, "fastFind.rx").getAbsolutePath());
+				out.println("save bye");
+			} finally {
+				out.close();
+			}
+			QuietIO rm = new QuietIO();
+			rm.includeFile(load.getPath());
+			new NGaroVM(128, 1024, NGaroVM.initializeMemory(base, true, Workloads.MEMORY_SIZE),
+					new InputManager(), rm, new ISaveImageController() {
+						@Override
+						public File getSavedImageFile() {
+							return saved;
+						}
+					}).run();
+			image = Memory.load(saved, true);
+			load.delete();
+			saved.delete();
+		} else {
+			image = NGaroVM.initializeMemory(base, true, Workloads.MEMORY_SIZE);
+		}
+	}
+
+	/**
+	 * adds a library after those named by its needs, as needs would have
+	 * loaded them from the directory it runs in
+	 */
+	private static void add(File library, String name, List<String> order) throws IOException {
+		if (order.contains(name)) {
+			return;
+		}
+		BufferedReader in = new BufferedReader(new FileReader(new File(library, name)));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("needs ") && line.trim().endsWith("'")) {
+					String need = line.substring(6).trim();
+					add(library, need.substring(0, need.length() - 1) + ".rx", order);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		order.add(name);
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() {
+		script.delete();
+	}
+
+	@Setup(Level.Invocation)
+	public void fresh() {
+		memory = Workloads.copy(image);
+	}
+
+	@Benchmark
+	public int run() throws IOException {
+		QuietIO console = new QuietIO();
+		console.includeFile(script.getPath());
+		Workloads.createVM(memory, console, engine).run();
+		return console.getWritten();
+	}
+
+}
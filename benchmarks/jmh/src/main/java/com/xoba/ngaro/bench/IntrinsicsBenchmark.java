@@ -0,0 +1,67 @@
+package com.xoba.ngaro.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.bench.Workloads.QuietIO;
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * The workloads made of the kernel's combinators, benchmarks/loop.rx (times
+ * within times), fact.rx (times) and fib.rx (bi and sip), with the
+ * combinators run natively and as Ngaro code.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class IntrinsicsBenchmark {
+
+	@Param({ "loop", "fact", "fib" })
+	public String workload;
+
+	@Param({ "true", "false" })
+	public boolean intrinsics;
+
+	@Param({ "SWITCH", "FAST", "JIT" })
+	public NGaroVM.Engine engine;
+
+	private IMemory image;
+	private IMemory memory;
+
+	@Setup(Level.Trial)
+	public void load() throws IOException {
+		image = Workloads.image(workload);
+	}
+
+	@Setup(Level.Invocation)
+	public void fresh() {
+		memory = Workloads.copy(image);
+	}
+
+	@Benchmark
+	public int run() throws IOException {
+		QuietIO console = new QuietIO();
+		NGaroVM vm = Workloads.createVM(memory, console, engine);
+		vm.setIntrinsics(intrinsics);
+		vm.run();
+		return console.getWritten();
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.InputManager;
+import com.xoba.ngaro.Memory;
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.NGaroVM.ISaveImageController;
+import com.xoba.ngaro.bench.Workloads.QuietIO;
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * examples/util/cat.rx, wc.rx and grep.rx over a text file of the given number
+ * of kilobytes, with files.rx moving it through port 4 in blocks, and a byte at
+ * a time as it does on vms without ops -9 to -11. All three slurp the file
+ * before doing anything else, so cat shows the difference most plainly.
+ *
+ * The tool is loaded into an image once per trial, whose boot word runs it on
+ * the file and exits.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class LineToolsBenchmark {
+
+	@Param({ "cat", "wc", "grep" })
+	public String tool;
+
+	@Param({ "true", "false" })
+	public boolean blocks;
+
+	@Param({ "SWITCH", "JIT" })
+	public NGaroVM.Engine engine;
+
+	@Param({ "256" })
+	public int kilobytes;
+
+	private File text;
+	private IMemory image;
+	private IMemory memory;
+
+	@Setup(Level.Trial)
+	public void prepare() throws IOException {
+		text = File.createTempFile("lines", ".txt");
+		String[] words = { "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "retro", "ngaro" };
+		Random random = new Random(0);
+		PrintWriter out = new PrintWriter(text);
+		try {
+			long n = 0;
+			while (n < 1024L * kilobytes) {
+				StringBuilder line = new StringBuilder();
+				for (int i = random.nextInt(12); i >= 0; i--) {
+					line.append(words[random.nextInt(words.length)]).append(i > 0 ? " " : "");
+				}
+				out.print(line + "\n");
+				n += line.length() + 1;
+			}
+		} finally {
+			out.close();
+		}
+		final File saved = File.createTempFile("tool-" + tool, ".img");
+		File script = File.createTempFile("tool-" + tool, ".rx");
+		PrintWriter rx = new PrintWriter(script);
+		try {
+			rx.println("include " + new File(Workloads.home(), "library/files.rx").getAbsolutePath());
+			rx.println("include " + new File(Workloads.home(), "examples/util/" + tool + ".rx").getAbsolutePath());
+			rx.println(": bar \"" + text.getAbsolutePath() + "\" "
+					+ (tool.equals("wc") ? "wc drop drop drop" : tool.equals("grep") ? "\"fox\" grep" : "cat") + " bye ;");
+			rx.println("&bar is boot");
+			rx.println("save bye");
+		} finally {
+			rx.close();
+		}
+		QuietIO rm = new QuietIO();
+		rm.includeFile(script.getPath());
+		new NGaroVM(128, 1024, NGaroVM.initializeMemory(new File(Workloads.home(), "retroImage"), true,
+				Workloads.MEMORY_SIZE), new InputManager(), rm, new ISaveImageController() {
+			@Override
+			public File getSavedImageFile() {
+				return saved;
+			}
+		}).run();
+		image = Memory.load(saved, true);
+		script.delete();
+		saved.delete();
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() {
+		text.delete();
+	}
+
+	@Setup(Level.Invocation)
+	public void fresh() {
+		memory = Workloads.copy(image);
+	}
+
+	@Benchmark
+	public int run() throws IOException {
+		QuietIO console = new QuietIO();
+		NGaroVM vm = new NGaroVM(128, 1024, memory, new InputManager(blocks), console, null);
+		vm.setEngine(engine);
+		vm.run();
+		return console.getWritten();
+	}
+
+}
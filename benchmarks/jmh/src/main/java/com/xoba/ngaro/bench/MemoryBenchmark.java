@@ -0,0 +1,81 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.PagedMemory;
+import com.xoba.ngaro.bench.Workloads.QuietIO;
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * The cost of PagedMemory against Memory, on the SWITCH engine, which is the
+ * one that runs on any IMemory. run() times each workload; main() reports how
+ * much memory each ends up using.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MemoryBenchmark {
+
+	@Param({ "empty", "case", "fact", "fib", "loop" })
+	public String workload;
+
+	@Param({ "HEAP", "PAGED" })
+	public String memory;
+
+	private IMemory image;
+	private IMemory fresh;
+
+	@Setup(Level.Trial)
+	public void load() throws IOException {
+		image = Workloads.image(workload);
+	}
+
+	@Setup(Level.Invocation)
+	public void fresh() throws IOException {
+		fresh = create(memory, workload, image);
+	}
+
+	private static IMemory create(String memory, String workload, IMemory image) throws IOException {
+		if (memory.equals("PAGED")) {
+			return PagedMemory.load(new File(Workloads.imageDir(), workload + ".img"), true, Workloads.MEMORY_SIZE);
+		}
+		return Workloads.copy(image);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@Warmup(iterations = 5, time = 2)
+	@Measurement(iterations = 5, time = 2)
+	@Fork(2)
+	public int run() throws IOException {
+		QuietIO console = new QuietIO();
+		Workloads.createVM(fresh, console, NGaroVM.Engine.SWITCH).run();
+		return console.getWritten();
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (String name : args.length > 0 ? args : Workloads.NAMES) {
+			Workloads.image(name);
+			PagedMemory m = (PagedMemory) create("PAGED", name, null);
+			Workloads.createVM(m, new QuietIO(), NGaroVM.Engine.SWITCH).run();
+			System.out.printf("%-6s paged: %d pages, %d KB; Memory: %d KB%n", name, m.getPrivatePages(),
+					4 * PagedMemory.PAGE_SIZE * m.getPrivatePages() / 1024, 4 * Workloads.MEMORY_SIZE / 1024);
+		}
+	}
+
+}
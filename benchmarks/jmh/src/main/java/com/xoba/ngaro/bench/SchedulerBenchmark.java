@@ -0,0 +1,120 @@
+package com.xoba.ngaro.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.NGaroScheduler;
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.bench.Workloads.QuietIO;
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Many vms running the loop workload at once: each on a thread of its own,
+ * against all of them on an NGaroScheduler with a thread per processor.
+ *
+ * main() prints the scheduler's own figures for a run of each size: its
+ * throughput, its fairness half way through, and the longest any vm waited
+ * for a turn.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SchedulerBenchmark {
+
+	@Param({ "8", "64" })
+	public int vms;
+
+	@Param({ "FAST" })
+	public String engine;
+
+	private IMemory image;
+
+	private NGaroVM[] batch;
+
+	@Setup(Level.Trial)
+	public void load() throws IOException {
+		image = Workloads.image("loop");
+	}
+
+	@Setup(Level.Invocation)
+	public void create() throws IOException {
+		batch = batch(image, vms, NGaroVM.Engine.valueOf(engine));
+	}
+
+	private static NGaroVM[] batch(IMemory image, int n, NGaroVM.Engine engine) throws IOException {
+		NGaroVM[] batch = new NGaroVM[n];
+		for (int i = 0; i < n; i++) {
+			batch[i] = Workloads.createVM(Workloads.copy(image), new QuietIO(), engine);
+		}
+		return batch;
+	}
+
+	@Benchmark
+	public void threads() throws InterruptedException {
+		Thread[] threads = new Thread[batch.length];
+		for (int i = 0; i < batch.length; i++) {
+			final NGaroVM vm = batch[i];
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					vm.run();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+	}
+
+	@Benchmark
+	public void scheduler() throws Exception {
+		run(batch, Runtime.getRuntime().availableProcessors(), false);
+	}
+
+	private static NGaroScheduler run(NGaroVM[] batch, int threads, boolean sample) throws Exception {
+		NGaroScheduler s = new NGaroScheduler(threads, NGaroScheduler.DEFAULT_SLICE);
+		NGaroScheduler.Task[] tasks = new NGaroScheduler.Task[batch.length];
+		for (int i = 0; i < batch.length; i++) {
+			tasks[i] = s.submit(batch[i]);
+		}
+		if (sample) {
+			tasks[0].get();
+			System.out.printf("  fairness when the first is done: %.3f%n", s.getFairness());
+		}
+		for (NGaroScheduler.Task t : tasks) {
+			t.get();
+		}
+		s.shutdown();
+		return s;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final IMemory image = Workloads.image("loop");
+		final int threads = Runtime.getRuntime().availableProcessors();
+		for (int n : new int[] { 8, 64, 256 }) {
+			NGaroVM[] batch = batch(image, n, NGaroVM.Engine.FAST);
+			System.out.printf("%d vms on %d threads%n", n, threads);
+			NGaroScheduler s = run(batch, threads, true);
+			System.out.printf("  %d slices, %.1f M instructions/s, longest wait for a turn %.1f ms%n",
+					s.getSlices(), s.getInstructionsPerSecond() / 1e6, s.getMaxQueuedNanos() / 1e6);
+		}
+	}
+
+}
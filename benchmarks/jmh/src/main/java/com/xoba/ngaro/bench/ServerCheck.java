@@ -0,0 +1,250 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.xoba.ngaro.NGaroScheduler;
+import com.xoba.ngaro.NGaroServer;
+import com.xoba.ngaro.NGaroTemplate;
+
+/**
+ * Checks of how NGaroServer sessions behave, run against a server started in
+ * this JVM on a port of its own; exits with 1 at the first that fails.
+ *
+ * Sessions run on retroImage with library/fastConsole.rx loaded, so that the
+ * listener reads each token through port 13.
+ */
+public class ServerCheck {
+
+	private static final String PROMPT = "ok ";
+
+	/**
+	 * how long to wait for output that should come
+	 */
+	private static final int TIMEOUT = 5000;
+
+	private static final int THREADS = 2;
+
+	private static NGaroServer server;
+
+	public static void main(String[] args) throws Exception {
+		final Workloads.QuietIO boot = new Workloads.QuietIO();
+		boot.includeFile(new File(Workloads.home(), "library/fastConsole.rx").getPath());
+		server = new NGaroServer(NGaroTemplate.boot(new File(Workloads.home(), "retroImage"),
+				Workloads.MEMORY_SIZE, boot), new NGaroScheduler(THREADS, NGaroScheduler.DEFAULT_SLICE),
+				new InetSocketAddress("127.0.0.1", 0));
+		server.start();
+		boolean ok = false;
+		try {
+			partialLine();
+			partialToken();
+			noInclude();
+			noEnvironment();
+			stalledClients();
+			ok = true;
+		} finally {
+			server.close();
+			server.getScheduler().shutdown();
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * a line sent in parts, the first ending in blanks, which the listener
+	 * reads past looking for the next token: it waits for the rest, rather
+	 * than taking the end of what has come as the end of the session
+	 */
+	private static void partialLine() throws IOException, InterruptedException {
+		final Client c = new Client();
+		try {
+			c.await(PROMPT);
+			c.send("1 2 + \n");
+			Thread.sleep(200);
+			c.send("  putn\n");
+			c.await("putn 3");
+			c.send("bye\n");
+		} finally {
+			c.close();
+		}
+		System.out.println("ok partial line");
+	}
+
+	/**
+	 * a token cut off at the end of what has come goes on with whatever comes
+	 * next, though no line ends there
+	 */
+	private static void partialToken() throws IOException, InterruptedException {
+		final Client c = new Client();
+		try {
+			c.await(PROMPT);
+			c.send("1 2 + putn\n4 pu");
+			c.await("putn 3");
+			Thread.sleep(200);
+			c.send("tn ");
+			c.await("putn 4");
+			c.send("\nbye\n");
+		} finally {
+			c.close();
+		}
+		System.out.println("ok partial token");
+	}
+
+	/**
+	 * sessions printing to clients that do not read are parked, holding no
+	 * thread, so that more of them than the scheduler has leave it free for
+	 * another
+	 */
+	private static void stalledClients() throws IOException, InterruptedException {
+		final int n = 2 * THREADS;
+		final Client[] stalled = new Client[n];
+		try {
+			for (int i = 0; i < n; i++) {
+				stalled[i] = new Client(1024);
+				stalled[i].send(": flood repeat 'x putc again ; flood\n");
+				stalled[i].await("xxxx");
+			}
+			// once their sockets are full, they are parked until they drain
+			final long end = System.currentTimeMillis() + 2 * TIMEOUT;
+			while (server.getScheduler().getParked() < n) {
+				if (System.currentTimeMillis() > end) {
+					throw new IllegalStateException(server.getScheduler().getParked() + " of " + n
+							+ " stalled sessions parked");
+				}
+				Thread.sleep(100);
+			}
+			final Client c = new Client();
+			try {
+				c.send("1 2 + putn\n");
+				c.await("putn 3");
+				c.send("bye\n");
+			} finally {
+				c.close();
+			}
+		} finally {
+			for (Client s : stalled) {
+				if (s != null) {
+					s.close();
+				}
+			}
+		}
+		System.out.println("ok stalled clients");
+	}
+
+	/**
+	 * a session, which has no files, cannot include one either
+	 */
+	private static void noInclude() throws IOException {
+		final File secret = File.createTempFile("server-check", ".rx");
+		try {
+			Files.write(secret.toPath(), "secretvalue42\n".getBytes(StandardCharsets.US_ASCII));
+			final Client c = new Client();
+			try {
+				c.await(PROMPT);
+				c.send("include " + secret.getPath() + "\n1 2 + putn\n");
+				final String out = c.await("putn 3");
+				if (out.contains("secretvalue42")) {
+					throw new IllegalStateException("included " + secret + ": " + out);
+				}
+				c.send("bye\n");
+			} finally {
+				c.close();
+			}
+		} finally {
+			secret.delete();
+		}
+		System.out.println("ok no include");
+	}
+
+	/**
+	 * getEnv in a session finds none of the server's environment
+	 */
+	private static void noEnvironment() throws IOException {
+		final Client c = new Client();
+		try {
+			c.await(PROMPT);
+			c.send("here \"PATH\" getEnv here getLength putn\n");
+			c.await("putn ");
+			final String out = c.await(PROMPT).trim();
+			if (!out.startsWith("0")) {
+				throw new IllegalStateException("PATH in a session: " + out);
+			}
+			c.send("bye\n");
+		} finally {
+			c.close();
+		}
+		System.out.println("ok no environment");
+	}
+
+	/**
+	 * a session's connection, and what it has sent back so far
+	 */
+	private static final class Client {
+
+		private final Socket socket;
+
+		private final InputStream in;
+
+		private final OutputStream out;
+
+		private final StringBuilder received = new StringBuilder();
+
+		Client() throws IOException {
+			this(0);
+		}
+
+		/**
+		 * with a receive buffer of the given size, if not zero
+		 */
+		Client(int buffer) throws IOException {
+			socket = new Socket();
+			if (buffer > 0) {
+				socket.setReceiveBufferSize(buffer);
+			}
+			socket.connect(server.getAddress());
+			socket.setSoTimeout(TIMEOUT);
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+		}
+
+		void send(String s) throws IOException {
+			out.write(s.getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+		}
+
+		/**
+		 * reads until what has come contains s, and returns what came up to
+		 * and including it
+		 */
+		String await(String s) throws IOException {
+			final byte[] b = new byte[4096];
+			int i;
+			while ((i = received.indexOf(s)) < 0) {
+				int n;
+				try {
+					n = in.read(b);
+				} catch (SocketTimeoutException e) {
+					throw new IllegalStateException("no " + s + " in " + received);
+				}
+				if (n < 0) {
+					throw new IllegalStateException("closed before " + s + " in " + received);
+				}
+				received.append(new String(b, 0, n, StandardCharsets.US_ASCII));
+			}
+			final String r = received.substring(0, i + s.length());
+			received.delete(0, i + s.length());
+			return r;
+		}
+
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+}
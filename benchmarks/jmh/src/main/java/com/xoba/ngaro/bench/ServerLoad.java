@@ -0,0 +1,148 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.xoba.ngaro.NGaroScheduler;
+import com.xoba.ngaro.NGaroServer;
+import com.xoba.ngaro.NGaroTemplate;
+
+/**
+ * A load test for NGaroServer: opens sessions, runs commands in each, and
+ * reports percentiles of how long sessions took to start, from connecting to
+ * the first prompt, and of the round trip of each command.
+ *
+ * Arguments are the number of sessions (100), commands in each (20), sessions
+ * at once (all of them) and where the server is, host:port or unix:path; with
+ * no server given, one is started in this JVM on a port of its own.
+ *
+ * Each command adds two numbers and prints the sum, which the vm's echo of the
+ * command does not contain, so the sum coming back is the answer.
+ */
+public class ServerLoad {
+
+	private static final String PROMPT = "ok ";
+
+	private static long[] startups, trips;
+
+	public static void main(String[] args) throws Exception {
+		final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		final int commands = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		final int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : sessions;
+		NGaroServer server = null;
+		SocketAddress address;
+		if (args.length > 3) {
+			address = address(args[3]);
+		} else {
+			server = new NGaroServer(NGaroTemplate.boot(new File(Workloads.home(), "retroImage"),
+					Workloads.MEMORY_SIZE, null), new NGaroScheduler(Runtime.getRuntime().availableProcessors(),
+					NGaroScheduler.DEFAULT_SLICE), new InetSocketAddress("127.0.0.1", 0));
+			server.start();
+			address = server.getAddress();
+		}
+		startups = new long[sessions];
+		trips = new long[sessions * commands];
+		ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+		Future<?>[] futures = new Future<?>[sessions];
+		final long t0 = System.nanoTime();
+		for (int i = 0; i < sessions; i++) {
+			final int session = i;
+			final SocketAddress a = address;
+			futures[i] = pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					session(a, session, commands);
+					return null;
+				}
+			});
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		final long elapsed = System.nanoTime() - t0;
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.MINUTES);
+		System.out.printf("%d sessions of %d commands, %d at once, to %s: %.0f ms, %.0f commands/s%n", sessions,
+				commands, concurrency, address, elapsed / 1e6, 1e9 * sessions * commands / elapsed);
+		report("session startup", startups);
+		report("command round trip", trips);
+		if (server != null) {
+			final NGaroScheduler s = server.getScheduler();
+			System.out.printf("server ran %d instructions, %.0f a command, %.1f M/s%n", s.getInstructions(),
+					(double) s.getInstructions() / (sessions * commands), 1e3 * s.getInstructions() / elapsed);
+			server.close();
+			server.getScheduler().shutdown();
+		}
+	}
+
+	private static SocketAddress address(String s) {
+		if (s.startsWith("unix:")) {
+			return UnixDomainSocketAddress.of(s.substring(5));
+		}
+		final int colon = s.lastIndexOf(':');
+		return new InetSocketAddress(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1)));
+	}
+
+	private static void session(SocketAddress address, int session, int commands) throws IOException {
+		final long t0 = System.nanoTime();
+		SocketChannel ch = address instanceof UnixDomainSocketAddress ? SocketChannel
+				.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+		try {
+			ch.connect(address);
+			StringBuilder out = new StringBuilder();
+			await(ch, out, PROMPT);
+			startups[session] = System.nanoTime() - t0;
+			for (int i = 0; i < commands; i++) {
+				final int a = 100000 + session;
+				final int b = 200000 + i;
+				out.setLength(0);
+				final long t = System.nanoTime();
+				ch.write(ByteBuffer.wrap((a + " " + b + " + putn\n").getBytes(StandardCharsets.US_ASCII)));
+				await(ch, out, String.valueOf(a + b));
+				trips[session * commands + i] = System.nanoTime() - t;
+			}
+			ch.write(ByteBuffer.wrap("bye\n".getBytes(StandardCharsets.US_ASCII)));
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * reads until what has come contains s
+	 */
+	private static void await(SocketChannel ch, StringBuilder out, String s) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(4096);
+		while (out.indexOf(s) < 0) {
+			buf.clear();
+			if (ch.read(buf) < 0) {
+				throw new IOException("closed before " + s + " in " + out);
+			}
+			out.append(new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII));
+		}
+	}
+
+	private static void report(String name, long[] t) {
+		long[] s = t.clone();
+		Arrays.sort(s);
+		System.out.printf("%-20s p50 %7.2f ms  p90 %7.2f ms  p99 %7.2f ms  max %7.2f ms%n", name, at(s, 0.5) / 1e6,
+				at(s, 0.9) / 1e6, at(s, 0.99) / 1e6, s[s.length - 1] / 1e6);
+	}
+
+	private static long at(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.AsyncConsole;
+import com.xoba.ngaro.InputManager;
+import com.xoba.ngaro.NGaroScheduler;
+import com.xoba.ngaro.NGaroTemplate;
+
+/**
+ * Interactive sessions forked from retroImage, each on an AsyncConsole, all
+ * on one NGaroScheduler: how long it takes to give every one of them a line
+ * and have them all back waiting for the next.
+ *
+ * main() reports what the sessions cost while they are idle: heap, threads,
+ * and the time to start them all.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionsBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int sessions;
+
+	private NGaroScheduler scheduler;
+
+	private AsyncConsole[] consoles;
+
+	/**
+	 * output goes nowhere
+	 */
+	private static final OutputStream NOWHERE = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Setup(Level.Trial)
+	public void start() throws Exception {
+		scheduler = new NGaroScheduler(Runtime.getRuntime().availableProcessors(), NGaroScheduler.DEFAULT_SLICE);
+		consoles = start(scheduler, sessions);
+	}
+
+	private static AsyncConsole[] start(NGaroScheduler scheduler, int n) throws IOException, InterruptedException {
+		NGaroTemplate template = NGaroTemplate.boot(new File(Workloads.home(), "retroImage"), Workloads.MEMORY_SIZE,
+				null);
+		AsyncConsole[] consoles = new AsyncConsole[n];
+		for (int i = 0; i < n; i++) {
+			consoles[i] = new AsyncConsole(NOWHERE);
+			scheduler.submit(template.fork(new InputManager(), consoles[i], null));
+		}
+		idle(scheduler, n);
+		return consoles;
+	}
+
+	/**
+	 * waits for all n sessions to be waiting for input
+	 */
+	private static void idle(NGaroScheduler scheduler, int n) throws InterruptedException {
+		while (scheduler.getParked() < n) {
+			Thread.sleep(1);
+		}
+	}
+
+	@Benchmark
+	public void line() throws InterruptedException {
+		for (AsyncConsole c : consoles) {
+			c.offer("1 2 + drop\n");
+		}
+		idle(scheduler, sessions);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() {
+		for (AsyncConsole c : consoles) {
+			c.close();
+		}
+		scheduler.shutdown();
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final Runtime r = Runtime.getRuntime();
+		System.gc();
+		final long heap = r.totalMemory() - r.freeMemory();
+		final int threads = Thread.activeCount();
+		NGaroScheduler s = new NGaroScheduler(r.availableProcessors(), NGaroScheduler.DEFAULT_SLICE);
+		long t0 = System.nanoTime();
+		AsyncConsole[] consoles = start(s, n);
+		final long started = System.nanoTime() - t0;
+		System.gc();
+		final long idle = r.totalMemory() - r.freeMemory() - heap;
+		System.out.printf("%d idle sessions: started in %.0f ms, %.1f KB of heap each, %d more threads%n", n,
+				started / 1e6, idle / 1024.0 / n, Thread.activeCount() - threads);
+		t0 = System.nanoTime();
+		for (AsyncConsole c : consoles) {
+			c.offer("1 2 + drop\n");
+		}
+		idle(s, n);
+		System.out.printf("a line to each: %.0f ms%n", (System.nanoTime() - t0) / 1e6);
+		for (AsyncConsole c : consoles) {
+			c.close();
+		}
+		s.shutdown();
+		s.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+}
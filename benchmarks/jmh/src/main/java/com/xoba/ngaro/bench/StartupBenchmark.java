@@ -0,0 +1,70 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.Memory;
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Time to get retroImage into a Workloads.MEMORY_SIZE cell memory, as every
+ * NGaroVM does at startup: through NGaroVM.initializeMemory(), which maps the
+ * file and bulk copies it, and the way it used to be done, one readInt() at a
+ * time into an intermediate memory that is then copied cell by cell.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode({ Mode.AverageTime, Mode.SingleShotTime })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StartupBenchmark {
+
+	private final File image = new File(Workloads.home(), "retroImage");
+
+	@Benchmark
+	public IMemory mapped() throws IOException {
+		return NGaroVM.initializeMemory(image, true, Workloads.MEMORY_SIZE);
+	}
+
+	@Benchmark
+	public IMemory readInt() throws IOException {
+		IMemory mem = new Memory(Workloads.MEMORY_SIZE);
+		IMemory image = loadByCell(this.image);
+		for (int i = 0; i < image.size(); i++) {
+			mem.set(i, image.get(i));
+		}
+		return mem;
+	}
+
+	/**
+	 * the former Memory.load()
+	 */
+	private static IMemory loadByCell(File f) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(f, "r");
+		try {
+			int n = (int) (in.length() / 4);
+			IMemory mem = new Memory(n);
+			for (int i = 0; i < n; i++) {
+				mem.set(i, Memory.switchEndian(in.readInt()));
+			}
+			return mem;
+		} finally {
+			in.close();
+		}
+	}
+
+}
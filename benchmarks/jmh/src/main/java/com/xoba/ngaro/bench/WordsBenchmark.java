@@ -0,0 +1,106 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.AsyncConsole;
+import com.xoba.ngaro.InputManager;
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.NGaroWords;
+
+/**
+ * Calling a Retro word from Java: as a line typed at the listener, which
+ * parses it, finds each word and prints the result, against NGaroWords, which
+ * pushes the arguments, runs the word found once and pops the result. Each is
+ * done on a number and on a string.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WordsBenchmark {
+
+	@Param({ "SWITCH", "FAST", "JIT" })
+	public NGaroVM.Engine engine;
+
+	private AsyncConsole console;
+
+	private NGaroVM vm;
+
+	private NGaroWords words;
+
+	private NGaroWords.Word square, length;
+
+	private int n;
+
+	/**
+	 * output goes nowhere
+	 */
+	private static final OutputStream NOWHERE = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Setup(Level.Trial)
+	public void boot() throws IOException {
+		console = new AsyncConsole(NOWHERE);
+		vm = new NGaroVM(128, 1024, NGaroVM.initializeMemory(new File(Workloads.home(), "retroImage"), true,
+				Workloads.MEMORY_SIZE), new InputManager(), console, null);
+		vm.setEngine(engine);
+		console.offer(": square dup * ;\n");
+		vm.run(Long.MAX_VALUE);
+		words = new NGaroWords(vm);
+		square = words.get("square");
+		length = words.get("getLength");
+	}
+
+	private NGaroVM.Status line(String s) {
+		console.offer(s);
+		return vm.run(Long.MAX_VALUE);
+	}
+
+	@Benchmark
+	public NGaroVM.Status listener() {
+		return line((n++ & 1023) + " square putn\n");
+	}
+
+	@Benchmark
+	public int call() {
+		return words.apply(square, n++ & 1023);
+	}
+
+	@Benchmark
+	public NGaroVM.Status listenerString() {
+		return line("\"the quick brown fox\" getLength putn\n");
+	}
+
+	@Benchmark
+	public int callString() {
+		words.pushString("the quick brown fox");
+		words.call(length);
+		return words.pop();
+	}
+
+}
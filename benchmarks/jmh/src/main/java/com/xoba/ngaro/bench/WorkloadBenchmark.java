@@ -0,0 +1,78 @@
+package com.xoba.ngaro.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.bench.Workloads.QuietIO;
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Runs each benchmarks/*.rx workload through NGaroVM.run(). The prepared image
+ * is loaded once per trial; every invocation gets its own copy of memory, so
+ * no run sees state left behind by an earlier one.
+ *
+ * run() reports warmed-up throughput and average time, cold() a single shot in
+ * a fresh JVM.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WorkloadBenchmark {
+
+	@Param({ "empty", "case", "fact", "fib", "loop", "strings" })
+	public String workload;
+
+	@Param({ "SWITCH", "FAST", "JIT" })
+	public NGaroVM.Engine engine;
+
+	private IMemory image;
+	private IMemory memory;
+	private QuietIO console;
+
+	@Setup(Level.Trial)
+	public void load() throws IOException {
+		image = Workloads.image(workload);
+	}
+
+	@Setup(Level.Invocation)
+	public void fresh() {
+		memory = Workloads.copy(image);
+		console = new QuietIO();
+	}
+
+	@Benchmark
+	@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+	@Warmup(iterations = 5, time = 2)
+	@Measurement(iterations = 5, time = 2)
+	@Fork(2)
+	public int run() throws IOException {
+		NGaroVM vm = Workloads.createVM(memory, console, engine);
+		vm.run();
+		return console.getWritten();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	@Fork(10)
+	public int cold() throws IOException {
+		NGaroVM vm = Workloads.createVM(memory, console, engine);
+		vm.run();
+		return console.getWritten();
+	}
+
+}
@@ -0,0 +1,147 @@
+package com.xoba.ngaro.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.xoba.ngaro.InputManager;
+import com.xoba.ngaro.Memory;
+import com.xoba.ngaro.NGaroVM;
+import com.xoba.ngaro.NGaroVM.ISaveImageController;
+import com.xoba.ngaro.inf.IMemory;
+import com.xoba.ngaro.inf.IReplIOManager;
+
+/**
+ * Turns benchmarks/*.rx into runnable images. Each workload script redefines
+ * boot and saves, exactly as under the C vm's Makefile; running the saved image
+ * then performs the workload and exits.
+ *
+ * Run main() once before a benchmark session so that the forked JVMs only load
+ * images from disk, and never interpret anything during setup.
+ */
+public class Workloads {
+
+	public static final String[] NAMES = { "empty", "case", "fact", "fib", "loop", "strings" };
+
+	public static final int MEMORY_SIZE = 1000000;
+
+	public static File home() {
+		return new File(System.getProperty("retro.home", "."));
+	}
+
+	public static File imageDir() {
+		return new File(System.getProperty("retro.images", "target/images"));
+	}
+
+	/**
+	 * a console that reads from included files only and swallows output
+	 */
+	public static class QuietIO implements IReplIOManager {
+
+		private final java.util.Stack<InputStream> stack = new java.util.Stack<InputStream>();
+
+		private int written;
+
+		@Override
+		public void includeFile(String name) {
+			try {
+				stack.push(new FileInputStream(new File(name)));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public int read() {
+			try {
+				while (stack.size() > 0) {
+					InputStream in = stack.peek();
+					int b = in.read();
+					if (b >= 0) {
+						return b;
+					} else {
+						in.close();
+						stack.pop();
+					}
+				}
+				return -1;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void write(int c) {
+			written++;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		public int getWritten() {
+			return written;
+		}
+
+	}
+
+	public static NGaroVM createVM(IMemory mem, IReplIOManager rm, NGaroVM.Engine engine) throws IOException {
+		NGaroVM vm = new NGaroVM(128, 1024, mem, new InputManager(), rm, null);
+		vm.setEngine(engine);
+		return vm;
+	}
+
+	/**
+	 * runs benchmarks/<name>.rx on top of retroImage, after the given files in
+	 * library/, leaving the saved image in the given file
+	 */
+	public static void prepare(String name, final File image, String... libraries) throws IOException {
+		image.getParentFile().mkdirs();
+		QuietIO rm = new QuietIO();
+		rm.includeFile(new File(home(), "benchmarks/" + name + ".rx").getPath());
+		for (int i = libraries.length - 1; i >= 0; i--) {
+			rm.includeFile(new File(home(), "library/" + libraries[i]).getPath());
+		}
+		IMemory mem = NGaroVM.initializeMemory(new File(home(), "retroImage"), true, MEMORY_SIZE);
+		NGaroVM vm = new NGaroVM(128, 1024, mem, new InputManager(), rm, new ISaveImageController() {
+			@Override
+			public File getSavedImageFile() {
+				return image;
+			}
+		});
+		vm.run();
+	}
+
+	/**
+	 * loads the prepared image for a workload, preparing it first if needed
+	 */
+	public static IMemory image(String name, String... libraries) throws IOException {
+		StringBuilder b = new StringBuilder(name);
+		for (String library : libraries) {
+			b.append('+').append(library.replace(".rx", ""));
+		}
+		File f = new File(imageDir(), b + ".img");
+		if (!f.exists()) {
+			prepare(name, f, libraries);
+		}
+		return Memory.load(f, true);
+	}
+
+	public static IMemory copy(IMemory source) {
+		IMemory target = new Memory(source.size());
+		for (int i = 0; i < source.size(); i++) {
+			target.set(i, source.get(i));
+		}
+		return target;
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (String name : args.length > 0 ? args : NAMES) {
+			File f = new File(imageDir(), name + ".img");
+			prepare(name, f);
+			System.out.println(name + " -> " + f);
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+package com.xoba.ngaro;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xoba.ngaro.inf.IAsyncReplIOManager;
+
+/**
+ * A console fed from outside, a chunk of input at a time, for a vm on an
+ * NGaroScheduler: the vm waits, holding no thread, until offer() brings a
+ * whole line or close() the end of all input.
+ *
+ * Output goes to a ConsoleOutput of the given size with no interval, which a
+ * vm run a slice at a time flushes after every slice.
+ *
+ * Reads past the input offered so far return -1 as at its end; port 13 asks
+ * ready() when a token runs on past what has come, and waits for the rest,
+ * which any input at all goes on with (see setAnyInput()).
+ */
+public class AsyncConsole implements IAsyncReplIOManager {
+
+	public static final int DEFAULT_SIZE = 4096;
+
+	private final ConsoleOutput out;
+
+	/**
+	 * input not read yet; pos is how far into the first chunk reads are
+	 */
+	private final ArrayDeque<byte[]> input = new ArrayDeque<byte[]>();
+	private int pos;
+
+	/**
+	 * line ends in input
+	 */
+	private int lines;
+
+	private boolean closed;
+
+	/**
+	 * whether any input, rather than a line, will do
+	 */
+	private boolean any;
+
+	private boolean files = true;
+
+	private List<Runnable> waiting = new ArrayList<Runnable>();
+
+	public AsyncConsole(OutputStream out) {
+		this(new ConsoleOutput(out, DEFAULT_SIZE, 0, false));
+	}
+
+	public AsyncConsole(ConsoleOutput out) {
+		this.out = out;
+	}
+
+	/**
+	 * whether include reads files; if not, it is ignored, as every other file
+	 * operation is on a vm without an InputManager
+	 */
+	public void setFiles(boolean files) {
+		this.files = files;
+	}
+
+	public void offer(String s) {
+		offer(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void offer(byte[] b) {
+		offer(b, 0, b.length);
+	}
+
+	/**
+	 * adds input after any there is already
+	 */
+	public void offer(byte[] b, int off, int len) {
+		if (len <= 0) {
+			return;
+		}
+		final byte[] chunk = new byte[len];
+		System.arraycopy(b, off, chunk, 0, len);
+		List<Runnable> ready;
+		synchronized (this) {
+			input.addLast(chunk);
+			lines += lines(chunk);
+			ready = callbacks();
+		}
+		run(ready);
+	}
+
+	/**
+	 * ends the input, once what has been offered is read
+	 */
+	public void close() {
+		List<Runnable> ready;
+		synchronized (this) {
+			closed = true;
+			ready = callbacks();
+		}
+		run(ready);
+	}
+
+	private static int lines(byte[] b) {
+		int n = 0;
+		for (byte c : b) {
+			if (c == '\n') {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * the callbacks to run, if the input is ready
+	 */
+	private List<Runnable> callbacks() {
+		if (!ready() || waiting.isEmpty()) {
+			return null;
+		}
+		List<Runnable> r = waiting;
+		waiting = new ArrayList<Runnable>();
+		return r;
+	}
+
+	private static void run(List<Runnable> ready) {
+		if (ready != null) {
+			for (Runnable r : ready) {
+				r.run();
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean ready() {
+		return lines > 0 || closed || any && !input.isEmpty();
+	}
+
+	@Override
+	public void setAnyInput(boolean any) {
+		List<Runnable> ready;
+		synchronized (this) {
+			this.any = any;
+			ready = callbacks();
+		}
+		run(ready);
+	}
+
+	@Override
+	public void whenReady(Runnable r) {
+		synchronized (this) {
+			if (!ready()) {
+				waiting.add(r);
+				return;
+			}
+		}
+		r.run();
+	}
+
+	/**
+	 * the file's contents go ahead of any input not read yet
+	 */
+	@Override
+	public synchronized void includeFile(String name) {
+		if (!files) {
+			return;
+		}
+		try {
+			final byte[] b = Files.readAllBytes(new File(name).toPath());
+			if (pos > 0) {
+				final byte[] first = input.removeFirst();
+				final byte[] rest = new byte[first.length - pos];
+				System.arraycopy(first, pos, rest, 0, rest.length);
+				input.addFirst(rest);
+				pos = 0;
+			}
+			if (b.length > 0) {
+				input.addFirst(b);
+				lines += lines(b);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * the next byte of input, -1 at its end, or -1 as well where nothing has
+	 * come yet, though a vm only reads once the input is ready
+	 */
+	@Override
+	public synchronized int read() {
+		final byte[] first = input.peekFirst();
+		if (first == null) {
+			return -1;
+		}
+		final int c = first[pos++] & 0xff;
+		if (pos == first.length) {
+			input.removeFirst();
+			pos = 0;
+		}
+		if (c == '\n') {
+			lines--;
+		}
+		return c;
+	}
+
+	@Override
+	public void write(int c) {
+		out.write(c);
+	}
+
+	@Override
+	public void flush() {
+		out.flush();
+	}
+
+}
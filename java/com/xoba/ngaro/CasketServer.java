@@ -0,0 +1,354 @@
+package com.xoba.ngaro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.xoba.ngaro.inf.IReplIOManager;
+
+/**
+ * Serves a Casket app (see library/casket.rx) over HTTP from a pool of vms,
+ * instead of booting one for each request as CGI does.
+ *
+ * The app is a template whose boot is dispatch, as a Casket app leaves its
+ * image before saving it: load() makes one from the app's source, or
+ * NGaroTemplate.boot() from the image it saved. Each vm of the pool is forked
+ * from the template once, runs a request from cell 0 as the CGI image would,
+ * and is then reset to the template, dropping the pages the request wrote and
+ * closing any files it left open.
+ *
+ * A request reaches the vm as it would through CGI: getEnv finds the request's
+ * variables (PATH_INFO, QUERY_STRING, REQUEST_METHOD, HTTP_HOST and so on),
+ * and the body is console input. Since getFormData reads QUERY_STRING only,
+ * the body of a form POSTed as application/x-www-form-urlencoded is added to
+ * it. What the vm writes is a CGI response: headers, such as the one
+ * Content-type: makes, and a Status: header if the app gives one, then a
+ * blank line and the body.
+ *
+ * A request that runs more than its instruction limit is stopped and answered
+ * with a 500.
+ */
+public final class CasketServer implements Closeable {
+
+	public static final long DEFAULT_INSTRUCTIONS = 100000000;
+
+	/**
+	 * the largest request body read
+	 */
+	public static final int MAX_BODY = 1 << 20;
+
+	private final NGaroTemplate app;
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private final BlockingQueue<Slot> idle;
+
+	private long instructionLimit = DEFAULT_INSTRUCTIONS;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * serves app on address with the given number of vms, each on a thread of
+	 * its own
+	 */
+	public CasketServer(NGaroTemplate app, InetSocketAddress address, int vms) throws IOException {
+		this.app = app;
+		this.idle = new ArrayBlockingQueue<Slot>(vms);
+		for (int i = 0; i < vms; i++) {
+			idle.add(new Slot());
+		}
+		this.server = HttpServer.create(address, 1024);
+		this.executor = Executors.newFixedThreadPool(vms);
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+	}
+
+	/**
+	 * a template of retroImage in size cells with the app in source loaded, up
+	 * to the bye that ends it; what it writes meanwhile goes to out
+	 */
+	public static NGaroTemplate load(File image, int size, File source, OutputStream out) throws IOException {
+		final ReplIOManager rm = new ReplIOManager(new ConsoleOutput(out));
+		rm.includeFile(source.getPath());
+		return NGaroTemplate.boot(image, size, rm);
+	}
+
+	/**
+	 * the most instructions a request may run
+	 */
+	public void setInstructionLimit(long instructions) {
+		this.instructionLimit = instructions;
+	}
+
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	/**
+	 * a vm of the pool, with the console and environment it is made with
+	 */
+	private final class Slot {
+
+		private final Exchange console = new Exchange();
+
+		private final Map<String, String> environment = new HashMap<String, String>();
+
+		private final NGaroVM vm;
+
+		Slot() throws IOException {
+			this.vm = app.fork(new InputManager(), console, null);
+			vm.setEnvironment(environment);
+		}
+	}
+
+	/**
+	 * console input from the request body, and output kept for the response
+	 */
+	private static final class Exchange implements IReplIOManager {
+
+		private static final byte[] NONE = new byte[0];
+
+		private byte[] in = NONE;
+
+		private int pos;
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		void reset(byte[] in) {
+			this.in = in;
+			this.pos = 0;
+			out.reset();
+		}
+
+		@Override
+		public void includeFile(String name) {
+			try {
+				final byte[] b = Files.readAllBytes(new File(name).toPath());
+				final byte[] c = new byte[b.length + in.length - pos];
+				System.arraycopy(b, 0, c, 0, b.length);
+				System.arraycopy(in, pos, c, b.length, in.length - pos);
+				in = c;
+				pos = 0;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public int read() {
+			return pos < in.length ? in[pos++] & 0xff : -1;
+		}
+
+		@Override
+		public void write(int c) {
+			out.write(c);
+		}
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		try {
+			final byte[] body = read(exchange.getRequestBody());
+			if (body == null) {
+				respond(exchange, 413, "text/plain", "request body over " + MAX_BODY + " bytes\n");
+				return;
+			}
+			final Slot s = idle.take();
+			try {
+				environment(exchange, body, s.environment);
+				s.console.reset(body);
+				final NGaroVM.Status status = s.vm.run(instructionLimit);
+				requests.incrementAndGet();
+				if (status != NGaroVM.Status.HALTED) {
+					respond(exchange, 500, "text/plain", "over " + instructionLimit + " instructions\n");
+				} else {
+					response(exchange, s.console.out.toByteArray());
+				}
+			} finally {
+				app.reset(s.vm);
+				s.console.reset(Exchange.NONE);
+				idle.add(s);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			respond(exchange, 500, "text/plain", e + "\n");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			if (out.size() + n > MAX_BODY) {
+				return null;
+			}
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * the CGI variables for a request, where the app is at the root and the
+	 * whole path is PATH_INFO
+	 */
+	private static void environment(HttpExchange exchange, byte[] body, Map<String, String> env) {
+		env.clear();
+		final String path = exchange.getRequestURI().getRawPath();
+		final String type = exchange.getRequestHeaders().getFirst("Content-Type");
+		String query = exchange.getRequestURI().getRawQuery();
+		if (body.length > 0 && type != null && type.startsWith("application/x-www-form-urlencoded")) {
+			final String form = new String(body, StandardCharsets.ISO_8859_1);
+			query = query == null || query.isEmpty() ? form : query + "&" + form;
+		}
+		final InetSocketAddress local = exchange.getLocalAddress();
+		final InetSocketAddress remote = exchange.getRemoteAddress();
+		env.put("GATEWAY_INTERFACE", "CGI/1.1");
+		env.put("SERVER_SOFTWARE", "ngaro");
+		env.put("SERVER_PROTOCOL", exchange.getProtocol());
+		env.put("SERVER_NAME", local.getHostString());
+		env.put("SERVER_PORT", String.valueOf(local.getPort()));
+		env.put("REMOTE_ADDR", remote.getAddress().getHostAddress());
+		env.put("REMOTE_PORT", String.valueOf(remote.getPort()));
+		env.put("REQUEST_METHOD", exchange.getRequestMethod());
+		env.put("REQUEST_URI", exchange.getRequestURI().getRawPath()
+				+ (exchange.getRequestURI().getRawQuery() == null ? "" : "?" + exchange.getRequestURI().getRawQuery()));
+		env.put("SCRIPT_NAME", "");
+		env.put("PATH_INFO", path);
+		env.put("QUERY_STRING", query == null ? "" : query);
+		env.put("CONTENT_LENGTH", String.valueOf(body.length));
+		if (type != null) {
+			env.put("CONTENT_TYPE", type);
+		}
+		for (Map.Entry<String, List<String>> e : exchange.getRequestHeaders().entrySet()) {
+			final String name = e.getKey().toUpperCase(Locale.ROOT).replace('-', '_');
+			if (!name.equals("CONTENT_TYPE") && !name.equals("CONTENT_LENGTH")) {
+				env.put("HTTP_" + name, String.join(", ", e.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * sends what a vm wrote as a CGI response: header lines up to a blank line,
+	 * then the body; output that does not start with headers is sent as
+	 * text/plain
+	 */
+	private static void response(HttpExchange exchange, byte[] out) throws IOException {
+		final String text = new String(out, StandardCharsets.ISO_8859_1);
+		int start = text.indexOf("\n\n");
+		final String[] lines = start < 0 ? new String[0] : text.substring(0, start).split("\r?\n");
+		for (String line : lines) {
+			if (line.indexOf(':') <= 0) {
+				start = -1;
+			}
+		}
+		int status = 200;
+		final Headers headers = exchange.getResponseHeaders();
+		if (start < 0) {
+			headers.set("Content-Type", "text/plain");
+			start = 0;
+		} else {
+			for (String line : lines) {
+				final int colon = line.indexOf(':');
+				final String name = line.substring(0, colon).trim();
+				final String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Status")) {
+					status = Integer.parseInt(value.split(" ")[0]);
+				} else {
+					headers.add(name, value);
+				}
+			}
+			start += 2;
+		}
+		final int length = out.length - start;
+		exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+		if (length > 0) {
+			final OutputStream o = exchange.getResponseBody();
+			o.write(out, start, length);
+			o.close();
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String type, String message) throws IOException {
+		final byte[] b = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(status, b.length);
+		final OutputStream o = exchange.getResponseBody();
+		o.write(b);
+		o.close();
+	}
+
+	/**
+	 * serves the Casket app in -Dngaro.casket.app, a source file that leaves
+	 * dispatch as boot and ends with bye, loaded on -Dngaro.casket.image
+	 * (retroImage) in -Dngaro.casket.cells cells; or, without an app, the
+	 * image, saved by such an app already. Listens on port -Dngaro.casket.port
+	 * (8080) of -Dngaro.casket.host (the loopback address) with
+	 * -Dngaro.casket.vms vms, and limits each request to
+	 * -Dngaro.casket.instructions.
+	 */
+	public static void main(String[] args) throws Exception {
+		final String image = System.getProperty("ngaro.casket.image", "retroImage");
+		final String source = System.getProperty("ngaro.casket.app");
+		final int cells = Integer.getInteger("ngaro.casket.cells", 1000000);
+		final String host = System.getProperty("ngaro.casket.host");
+		final int port = Integer.getInteger("ngaro.casket.port", 8080);
+		final int vms = Integer.getInteger("ngaro.casket.vms", Runtime.getRuntime().availableProcessors());
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			// or each response waits for the client to ack its headers
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+
+		final NGaroTemplate app = source == null ? NGaroTemplate.boot(new File(image), cells, null) : load(new File(
+				image), cells, new File(source), System.err);
+		CasketServer s = new CasketServer(app, new InetSocketAddress(host == null ? InetAddress.getLoopbackAddress()
+				: InetAddress.getByName(host), port), vms);
+		s.setInstructionLimit(Long.getLong("ngaro.casket.instructions", DEFAULT_INSTRUCTIONS));
+		s.start();
+		System.err.println("serving " + (source == null ? image : source) + " on " + s.getAddress());
+	}
+
+}
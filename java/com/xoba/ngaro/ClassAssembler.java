@@ -0,0 +1,466 @@
+package com.xoba.ngaro;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Just enough of a class file writer for Jit: a constant pool, methods with a
+ * Code attribute, labels, and a StackMapTable in which every frame has the same
+ * locals as the method entry and an empty operand stack. Code written with it
+ * has to keep to that shape, which Jit's output does: every local is set up
+ * front, and nothing is left on the operand stack across a branch.
+ */
+final class ClassAssembler {
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	static final int ICONST_0 = 3;
+	static final int BIPUSH = 16;
+	static final int SIPUSH = 17;
+	static final int LDC_W = 19;
+	static final int ILOAD = 21;
+	static final int ALOAD = 25;
+	static final int IALOAD = 46;
+	static final int ISTORE = 54;
+	static final int ASTORE = 58;
+	static final int IASTORE = 79;
+	static final int DUP2 = 92;
+	static final int IADD = 96;
+	static final int ISUB = 100;
+	static final int IMUL = 104;
+	static final int IDIV = 108;
+	static final int IREM = 112;
+	static final int ISHL = 120;
+	static final int ISHR = 122;
+	static final int IAND = 126;
+	static final int IOR = 128;
+	static final int IXOR = 130;
+	static final int IINC = 132;
+	static final int IFEQ = 153;
+	static final int IFNE = 154;
+	static final int IFLT = 155;
+	static final int IFGE = 156;
+	static final int IFGT = 157;
+	static final int IFLE = 158;
+	static final int IF_ICMPEQ = 159;
+	static final int IF_ICMPNE = 160;
+	static final int IF_ICMPLT = 161;
+	static final int IF_ICMPGE = 162;
+	static final int IF_ICMPGT = 163;
+	static final int IF_ICMPLE = 164;
+	static final int GOTO = 167;
+	static final int LOOKUPSWITCH = 171;
+	static final int IRETURN = 172;
+	static final int RETURN = 177;
+	static final int GETFIELD = 180;
+	static final int PUTFIELD = 181;
+	static final int INVOKEVIRTUAL = 182;
+	static final int INVOKESPECIAL = 183;
+	static final int INVOKESTATIC = 184;
+
+	private static final int ITEM_INTEGER = 1;
+	private static final int ITEM_OBJECT = 7;
+
+	/**
+	 * a growable big-endian byte buffer
+	 */
+	static final class Bytes {
+
+		byte[] b = new byte[256];
+		int n;
+
+		void u1(int v) {
+			if (n == b.length) {
+				b = Arrays.copyOf(b, 2 * n);
+			}
+			b[n++] = (byte) v;
+		}
+
+		void u2(int v) {
+			u1(v >> 8);
+			u1(v);
+		}
+
+		void u4(int v) {
+			u2(v >>> 16);
+			u2(v);
+		}
+
+		void put(Bytes o) {
+			for (int i = 0; i < o.n; i++) {
+				u1(o.b[i]);
+			}
+		}
+
+		void set2(int at, int v) {
+			b[at] = (byte) (v >> 8);
+			b[at + 1] = (byte) v;
+		}
+
+		void set4(int at, int v) {
+			set2(at, v >>> 16);
+			set2(at + 2, v);
+		}
+	}
+
+	private final Bytes pool = new Bytes();
+	private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolSize = 1;
+
+	private final Bytes methods = new Bytes();
+	private int methodCount;
+
+	private final int thisClass, superClass;
+	private final int[] interfaces;
+
+	ClassAssembler(String name, String superName, String... interfaceNames) {
+		this.thisClass = classRef(name);
+		this.superClass = classRef(superName);
+		this.interfaces = new int[interfaceNames.length];
+		for (int i = 0; i < interfaceNames.length; i++) {
+			interfaces[i] = classRef(interfaceNames[i]);
+		}
+	}
+
+	int thisClass() {
+		return thisClass;
+	}
+
+	private Integer lookup(String key) {
+		return poolIndex.get(key);
+	}
+
+	private int add(String key) {
+		int i = poolSize++;
+		poolIndex.put(key, i);
+		return i;
+	}
+
+	int utf8(String s) {
+		String key = "U" + s;
+		Integer i = lookup(key);
+		if (i != null) {
+			return i;
+		}
+		byte[] b;
+		try {
+			b = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		pool.u1(1);
+		pool.u2(b.length);
+		for (byte x : b) {
+			pool.u1(x);
+		}
+		return add(key);
+	}
+
+	int classRef(String internalName) {
+		String key = "C" + internalName;
+		Integer i = lookup(key);
+		if (i != null) {
+			return i;
+		}
+		int name = utf8(internalName);
+		pool.u1(7);
+		pool.u2(name);
+		return add(key);
+	}
+
+	int integer(int v) {
+		String key = "I" + v;
+		Integer i = lookup(key);
+		if (i != null) {
+			return i;
+		}
+		pool.u1(3);
+		pool.u4(v);
+		return add(key);
+	}
+
+	private int nameAndType(String name, String desc) {
+		String key = "N" + name + " " + desc;
+		Integer i = lookup(key);
+		if (i != null) {
+			return i;
+		}
+		int n = utf8(name);
+		int d = utf8(desc);
+		pool.u1(12);
+		pool.u2(n);
+		pool.u2(d);
+		return add(key);
+	}
+
+	private int member(int tag, String owner, String name, String desc) {
+		String key = tag + owner + "." + name + " " + desc;
+		Integer i = lookup(key);
+		if (i != null) {
+			return i;
+		}
+		int c = classRef(owner);
+		int nt = nameAndType(name, desc);
+		pool.u1(tag);
+		pool.u2(c);
+		pool.u2(nt);
+		return add(key);
+	}
+
+	int fieldRef(String owner, String name, String desc) {
+		return member(9, owner, name, desc);
+	}
+
+	int methodRef(String owner, String name, String desc) {
+		return member(10, owner, name, desc);
+	}
+
+	/**
+	 * starts a method whose locals, in order, have the given field descriptors;
+	 * these are also the locals of every stack map frame in it
+	 */
+	Code method(int access, String name, String desc, String... locals) {
+		return new Code(access, name, desc, locals);
+	}
+
+	final class Code {
+
+		private final int access, name, desc;
+
+		private final Bytes code = new Bytes();
+
+		private final Bytes frameLocals = new Bytes();
+		private final int maxLocals;
+
+		private final List<Integer> labels = new ArrayList<Integer>();
+
+		/**
+		 * offsets of branch fields to patch: position of the opcode, position of
+		 * the field, label, and field width
+		 */
+		private final List<int[]> fixups = new ArrayList<int[]>();
+
+		private final TreeSet<Integer> frames = new TreeSet<Integer>();
+
+		private boolean unreachable;
+
+		private Code(int access, String name, String desc, String[] locals) {
+			this.access = access;
+			this.name = utf8(name);
+			this.desc = utf8(desc);
+			this.maxLocals = locals.length;
+			frameLocals.u2(locals.length);
+			for (String l : locals) {
+				if (l.equals("I")) {
+					frameLocals.u1(ITEM_INTEGER);
+				} else if (l.startsWith("[")) {
+					frameLocals.u1(ITEM_OBJECT);
+					frameLocals.u2(classRef(l));
+				} else {
+					frameLocals.u1(ITEM_OBJECT);
+					frameLocals.u2(classRef(l.substring(1, l.length() - 1)));
+				}
+			}
+		}
+
+		private void start() {
+			if (unreachable) {
+				// the verifier wants a frame after every goto, return and switch
+				frames.add(code.n);
+				unreachable = false;
+			}
+		}
+
+		void op(int opcode) {
+			start();
+			code.u1(opcode);
+			if (opcode == IRETURN || opcode == RETURN) {
+				unreachable = true;
+			}
+		}
+
+		void op(int opcode, int u1) {
+			op(opcode);
+			code.u1(u1);
+		}
+
+		/**
+		 * an instruction with a two byte constant pool index
+		 */
+		void ref(int opcode, int index) {
+			op(opcode);
+			code.u2(index);
+		}
+
+		void iload(int local) {
+			op(ILOAD, local);
+		}
+
+		void aload(int local) {
+			op(ALOAD, local);
+		}
+
+		void istore(int local) {
+			op(ISTORE, local);
+		}
+
+		void astore(int local) {
+			op(ASTORE, local);
+		}
+
+		void iinc(int local, int delta) {
+			op(IINC, local);
+			code.u1(delta);
+		}
+
+		void push(int v) {
+			if (v >= -1 && v <= 5) {
+				op(ICONST_0 + v);
+			} else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+				op(BIPUSH, v);
+			} else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+				op(SIPUSH);
+				code.u2(v);
+			} else {
+				ref(LDC_W, integer(v));
+			}
+		}
+
+		int newLabel() {
+			labels.add(-1);
+			return labels.size() - 1;
+		}
+
+		/**
+		 * binds a label here; the operand stack must be empty
+		 */
+		void mark(int label) {
+			labels.set(label, code.n);
+			frames.add(code.n);
+			unreachable = false;
+		}
+
+		void jump(int opcode, int label) {
+			op(opcode);
+			fixups.add(new int[] { code.n - 1, code.n, label, 2 });
+			code.u2(0);
+			if (opcode == GOTO) {
+				unreachable = true;
+			}
+		}
+
+		void lookupswitch(int dflt, int[] keys, int[] targets) {
+			op(LOOKUPSWITCH);
+			final int at = code.n - 1;
+			while (code.n % 4 != 0) {
+				code.u1(0);
+			}
+			fixups.add(new int[] { at, code.n, dflt, 4 });
+			code.u4(0);
+			code.u4(keys.length);
+			for (int i = 0; i < keys.length; i++) {
+				code.u4(keys[i]);
+				fixups.add(new int[] { at, code.n, targets[i], 4 });
+				code.u4(0);
+			}
+			unreachable = true;
+		}
+
+		/**
+		 * size of the bytecode so far
+		 */
+		int size() {
+			return code.n;
+		}
+
+		void end() {
+			for (int[] f : fixups) {
+				int target = labels.get(f[2]);
+				if (target < 0) {
+					throw new IllegalStateException("unbound label");
+				}
+				int offset = target - f[0];
+				if (f[3] == 2) {
+					if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+						throw new IllegalStateException("branch out of range");
+					}
+					code.set2(f[1], offset);
+				} else {
+					code.set4(f[1], offset);
+				}
+			}
+			if (code.n > 65535) {
+				throw new IllegalStateException("method too large");
+			}
+
+			Bytes table = new Bytes();
+			table.u2(frames.size());
+			int last = -1;
+			for (int at : frames) {
+				int delta = last < 0 ? at : at - last - 1;
+				if (last < 0) {
+					table.u1(255);
+					table.u2(delta);
+					table.put(frameLocals);
+					table.u2(0);
+				} else if (delta < 64) {
+					table.u1(delta);
+				} else {
+					table.u1(251);
+					table.u2(delta);
+				}
+				last = at;
+			}
+
+			methods.u2(access);
+			methods.u2(name);
+			methods.u2(desc);
+			methods.u2(1);
+			methods.u2(utf8("Code"));
+			int attributes = frames.isEmpty() ? 0 : 1;
+			methods.u4(12 + code.n + (attributes == 0 ? 0 : 6 + table.n));
+			methods.u2(8);
+			methods.u2(maxLocals);
+			methods.u4(code.n);
+			methods.put(code);
+			methods.u2(0);
+			methods.u2(attributes);
+			if (attributes > 0) {
+				methods.u2(utf8("StackMapTable"));
+				methods.u4(table.n);
+				methods.put(table);
+			}
+			methodCount++;
+		}
+	}
+
+	byte[] toByteArray() {
+		Bytes out = new Bytes();
+		out.u4(0xCAFEBABE);
+		out.u2(0);
+		out.u2(52);
+		out.u2(poolSize);
+		out.put(pool);
+		out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.u2(thisClass);
+		out.u2(superClass);
+		out.u2(interfaces.length);
+		for (int i : interfaces) {
+			out.u2(i);
+		}
+		out.u2(0);
+		out.u2(methodCount);
+		out.put(methods);
+		out.u2(0);
+		return Arrays.copyOf(out.b, out.n);
+	}
+
+}
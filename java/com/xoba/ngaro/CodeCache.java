@@ -0,0 +1,382 @@
+package com.xoba.ngaro;
+
+import static com.xoba.ngaro.NGaroVM.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Pre-decoded form of the code in a Memory, filled in lazily as FastInterpreter
+ * reaches each cell.
+ *
+ * code[a] holds the decoded opcode for cell a, or UNDECODED. Literals and
+ * branch targets go to arg[a]; targets are stored as the ip value to continue
+ * from, already moved past the zero padding at the start of a word, so no
+ * branch or call has to look at its target again. Because that skip was taken
+ * at decode time, every skipped cell is remembered, and a store into one of
+ * them throws the whole cache away.
+ *
+ * Frequent sequences, as found with OpcodeProfile, decode to a single fused
+ * opcode at their first cell, with a second argument in arg2[] where they need
+ * one; the interpreter continues after the whole sequence. Cells inside a
+ * fused sequence are remembered too, and a store into one undoes the fusions
+ * that may cover it. A jump into the middle of a sequence decodes that cell on
+ * its own as usual.
+ *
+ * A call in tail position whose callee TailCalls finds safe decodes to a jump,
+ * TAIL_CALL, that does not push a return address. A call to one of the words
+ * in Intrinsics decodes to INTRINSIC, which runs it natively.
+ */
+final class CodeCache {
+
+	static final int UNDECODED = 0;
+
+	// decoded opcodes are the vm opcodes shifted up by one, plus CALL
+
+	static final int NOP = VM_NOP + 1;
+	static final int LIT = VM_LIT + 1;
+	static final int DUP = VM_DUP + 1;
+	static final int DROP = VM_DROP + 1;
+	static final int SWAP = VM_SWAP + 1;
+	static final int PUSH = VM_PUSH + 1;
+	static final int POP = VM_POP + 1;
+	static final int LOOP = VM_LOOP + 1;
+	static final int JUMP = VM_JUMP + 1;
+	static final int RETURN = VM_RETURN + 1;
+	static final int LT_JUMP = VM_LT_JUMP + 1;
+	static final int GT_JUMP = VM_GT_JUMP + 1;
+	static final int NE_JUMP = VM_NE_JUMP + 1;
+	static final int EQ_JUMP = VM_EQ_JUMP + 1;
+	static final int FETCH = VM_FETCH + 1;
+	static final int STORE = VM_STORE + 1;
+	static final int ADD = VM_ADD + 1;
+	static final int SUB = VM_SUB + 1;
+	static final int MUL = VM_MUL + 1;
+	static final int DIVMOD = VM_DIVMOD + 1;
+	static final int AND = VM_AND + 1;
+	static final int OR = VM_OR + 1;
+	static final int XOR = VM_XOR + 1;
+	static final int SHL = VM_SHL + 1;
+	static final int SHR = VM_SHR + 1;
+	static final int ZERO_EXIT = VM_ZERO_EXIT + 1;
+	static final int INC = VM_INC + 1;
+	static final int DEC = VM_DEC + 1;
+	static final int IN = VM_IN + 1;
+	static final int OUT = VM_OUT + 1;
+	static final int WAIT = VM_WAIT + 1;
+	static final int CALL = VM_WAIT + 2;
+
+	/**
+	 * a call that counts towards compiling its target
+	 */
+	static final int COUNTED_CALL = VM_WAIT + 3;
+
+	/**
+	 * a call followed by VM_RETURN, run as a jump
+	 */
+	static final int TAIL_CALL = VM_WAIT + 19;
+
+	static final int COUNTED_TAIL_CALL = VM_WAIT + 20;
+
+	/**
+	 * a call to a word in Intrinsics, with the intrinsic in arg and, for the
+	 * JIT engine, the call's target in arg2: there it counts towards compiling
+	 * the word, and once it is hot the compiled code runs instead
+	 */
+	static final int INTRINSIC = VM_WAIT + 21;
+
+	// fused sequences
+
+	/**
+	 * the body of quote: POP INC DUP FETCH DEC PUSH INC RETURN
+	 */
+	static final int QUOTE = VM_WAIT + 4;
+
+	/**
+	 * the body of do: DEC PUSH RETURN
+	 */
+	static final int DO = VM_WAIT + 5;
+
+	/**
+	 * PUSH DUP POP SWAP, which is over
+	 */
+	static final int OVER = VM_WAIT + 6;
+
+	static final int SWAP_PUSH = VM_WAIT + 7;
+	static final int PUSH_DUP = VM_WAIT + 8;
+	static final int POP_RETURN = VM_WAIT + 9;
+	static final int INC_RETURN = VM_WAIT + 10;
+	static final int LIT_ADD = VM_WAIT + 11;
+	static final int LIT_SUB = VM_WAIT + 12;
+	static final int LIT_FETCH = VM_WAIT + 13;
+	static final int DUP_LIT_EQ_JUMP = VM_WAIT + 14;
+	static final int DUP_LIT_NE_JUMP = VM_WAIT + 15;
+
+	// calls are only fused when they need not count towards the Jit
+
+	static final int LIT_CALL = VM_WAIT + 16;
+	static final int DUP_CALL = VM_WAIT + 17;
+	static final int PUSH_CALL = VM_WAIT + 18;
+
+	/**
+	 * the longest fused sequence, in cells
+	 */
+	private static final int MAX_SPAN = 8;
+
+	private static final int INITIAL_SIZE = 1 << 14;
+
+	private final int[] m;
+
+	final TailCalls tails;
+
+	/**
+	 * set for the JIT engine
+	 */
+	Jit jit;
+
+	/**
+	 * set when the vm runs the kernel's combinators natively
+	 */
+	Intrinsics intrinsics;
+
+	int[] code;
+	int[] arg;
+	int[] arg2;
+
+	/**
+	 * highest decoded address
+	 */
+	private int hi;
+
+	/**
+	 * zero cells that some decoded target was moved past
+	 */
+	private final BitSet skipped = new BitSet();
+
+	/**
+	 * cells after the first of some fused sequence
+	 */
+	private final BitSet covered = new BitSet();
+
+	CodeCache(int[] m) {
+		this.m = m;
+		this.tails = new TailCalls(m);
+		int n = Math.min(INITIAL_SIZE, m.length);
+		this.code = new int[n];
+		this.arg = new int[n];
+		this.arg2 = new int[n];
+	}
+
+	/**
+	 * makes room for address a, which must be inside memory
+	 */
+	void grow(int a) {
+		int n = code.length;
+		while (n <= a) {
+			n *= 2;
+		}
+		n = Math.min(n, m.length);
+		code = Arrays.copyOf(code, n);
+		arg = Arrays.copyOf(arg, n);
+		arg2 = Arrays.copyOf(arg2, n);
+	}
+
+	void decode(int a) {
+		if (fuse(a)) {
+			hi = Math.max(hi, a);
+			return;
+		}
+		final int raw = m[a];
+		switch (raw) {
+		case VM_LIT:
+			arg[a] = m[a + 1];
+			break;
+		case VM_LOOP:
+		case VM_JUMP:
+		case VM_LT_JUMP:
+		case VM_GT_JUMP:
+		case VM_NE_JUMP:
+		case VM_EQ_JUMP:
+			arg[a] = resolve(m[a + 1]);
+			break;
+		default:
+			if (raw < 0 || raw > VM_WAIT) {
+				final int kind = intrinsics == null ? -1 : intrinsics.kind(raw);
+				if (kind >= 0) {
+					// resolved so that a store into the padding, as by :is, flushes it
+					arg2[a] = resolve(raw);
+					code[a] = INTRINSIC;
+					arg[a] = kind;
+					hi = Math.max(hi, a);
+					return;
+				}
+				arg[a] = resolve(raw);
+				if (tails.isTail(a) && tails.safe(arg[a] + 1)) {
+					code[a] = jit == null ? TAIL_CALL : COUNTED_TAIL_CALL;
+				} else {
+					code[a] = jit == null ? CALL : COUNTED_CALL;
+				}
+				hi = Math.max(hi, a);
+				return;
+			}
+		}
+		code[a] = raw + 1;
+		hi = Math.max(hi, a);
+	}
+
+	private boolean matches(int a, int... ops) {
+		if (a + ops.length > m.length) {
+			return false;
+		}
+		for (int i = 0; i < ops.length; i++) {
+			if (ops[i] >= 0 && m[a + i] != ops[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * whether cell a holds a call that is not in tail position
+	 */
+	private boolean isCall(int a) {
+		return a < m.length && (m[a] < 0 || m[a] > VM_WAIT) && !tails.isTail(a)
+				&& (intrinsics == null || intrinsics.kind(m[a]) < 0);
+	}
+
+	/**
+	 * decodes a fused sequence at a, if there is one
+	 */
+	private boolean fuse(int a) {
+		final int any = -1;
+		int op, span;
+		if (matches(a, VM_POP, VM_INC, VM_DUP, VM_FETCH, VM_DEC, VM_PUSH, VM_INC, VM_RETURN)) {
+			op = QUOTE;
+			span = 8;
+		} else if (matches(a, VM_DUP, VM_LIT, any, VM_EQ_JUMP, any)) {
+			op = DUP_LIT_EQ_JUMP;
+			span = 5;
+		} else if (matches(a, VM_DUP, VM_LIT, any, VM_NE_JUMP, any)) {
+			op = DUP_LIT_NE_JUMP;
+			span = 5;
+		} else if (matches(a, VM_PUSH, VM_DUP, VM_POP, VM_SWAP)) {
+			op = OVER;
+			span = 4;
+		} else if (matches(a, VM_DEC, VM_PUSH, VM_RETURN)) {
+			op = DO;
+			span = 3;
+		} else if (matches(a, VM_LIT, any, VM_ADD)) {
+			op = LIT_ADD;
+			span = 3;
+		} else if (matches(a, VM_LIT, any, VM_SUB)) {
+			op = LIT_SUB;
+			span = 3;
+		} else if (matches(a, VM_LIT, any, VM_FETCH)) {
+			op = LIT_FETCH;
+			span = 3;
+		} else if (jit == null && matches(a, VM_LIT, any) && isCall(a + 2)) {
+			op = LIT_CALL;
+			span = 3;
+		} else if (jit == null && matches(a, VM_DUP) && isCall(a + 1)) {
+			op = DUP_CALL;
+			span = 2;
+		} else if (jit == null && matches(a, VM_PUSH) && isCall(a + 1)) {
+			op = PUSH_CALL;
+			span = 2;
+		} else if (matches(a, VM_SWAP, VM_PUSH)) {
+			op = SWAP_PUSH;
+			span = 2;
+		} else if (matches(a, VM_PUSH, VM_DUP)) {
+			op = PUSH_DUP;
+			span = 2;
+		} else if (matches(a, VM_POP, VM_RETURN)) {
+			op = POP_RETURN;
+			span = 2;
+		} else if (matches(a, VM_INC, VM_RETURN)) {
+			op = INC_RETURN;
+			span = 2;
+		} else {
+			return false;
+		}
+		switch (op) {
+		case DUP_LIT_EQ_JUMP:
+		case DUP_LIT_NE_JUMP:
+			arg[a] = m[a + 2];
+			arg2[a] = resolve(m[a + 4]);
+			break;
+		case LIT_ADD:
+		case LIT_SUB:
+		case LIT_FETCH:
+			arg[a] = m[a + 1];
+			break;
+		case LIT_CALL:
+			arg[a] = m[a + 1];
+			arg2[a] = resolve(m[a + 2]);
+			break;
+		case DUP_CALL:
+		case PUSH_CALL:
+			arg[a] = resolve(m[a + 1]);
+			break;
+		}
+		code[a] = op;
+		covered.set(a + 1, a + span);
+		return true;
+	}
+
+	/**
+	 * the ip to continue from (before the interpreter's own increment) for a
+	 * transfer to target, moving past up to two cells of zero padding exactly
+	 * as process() does at run time
+	 */
+	private int resolve(int target) {
+		int ip = target - 1;
+		for (int i = 0; i < 2; i++) {
+			final int next = ip + 1;
+			if (next >= 0 && next < m.length && m[next] == 0) {
+				skipped.set(next);
+				ip = next;
+			} else {
+				break;
+			}
+		}
+		return ip;
+	}
+
+	/**
+	 * called for every store into memory; true if the store changed compiled
+	 * code
+	 */
+	boolean stored(int a) {
+		final boolean tail = tails.stored(a);
+		if (tail) {
+			flush();
+		}
+		if (a < code.length && a >= 0) {
+			code[a] = UNDECODED;
+			if (a > 0) {
+				code[a - 1] = UNDECODED;
+			}
+			if (covered.get(a)) {
+				Arrays.fill(code, Math.max(0, a - MAX_SPAN + 1), a, UNDECODED);
+			}
+			if (skipped.get(a)) {
+				flush();
+			}
+		}
+		if (jit == null) {
+			return false;
+		} else if (tail) {
+			jit.invalidate();
+			return true;
+		}
+		return jit.stored(a);
+	}
+
+	void flush() {
+		Arrays.fill(code, 0, Math.min(hi + 1, code.length), UNDECODED);
+		skipped.clear();
+		covered.clear();
+		hi = 0;
+	}
+
+}
@@ -0,0 +1,253 @@
+package com.xoba.ngaro;
+
+import com.xoba.ngaro.inf.IMemory;
+import com.xoba.ngaro.inf.INonBlockingReplIOManager;
+import com.xoba.ngaro.inf.IStack;
+
+/**
+ * Port 13: the console a string or a token at a time, in one wait where the
+ * kernel's puts and accept take one or two per character.
+ *
+ * Op 1 returns -1, where a vm without the device leaves the 1 in the port, so
+ * that library/fastConsole.rx can tell it is there. Op 2 prints the string at
+ * the address on the stack as (puts) does, and op 3 as the formatted <puts>
+ * does, taking the arguments of %d, %o, %x, %c and %s from the stack below the
+ * address. Op 4 is accept: it takes an address, a delimiter and flags (1 for
+ * remapping, 2 for tabAsWhitespace, 4 for eatLeading?) and reads a token
+ * there, echoing keys and handling backspace exactly as accept does into tib;
+ * it returns the length of the token. Storing the delimiter in break, as
+ * accept does first, is left to library/fastConsole.rx.
+ *
+ * Where accept would go on storing -1 at the end of all input until it ran out
+ * of memory, op 4 ends the token and then the vm, as bye does. Under run(long)
+ * with an INonBlockingReplIOManager, input that has merely not come yet is not
+ * the end: a token that runs on past it, or has not started, parks the vm at
+ * the wait, and the same request carries on with the token where it left off
+ * when the vm runs again. Meanwhile the console is told, by setAnyInput(),
+ * that any input at all will do, rather than a whole line.
+ */
+final class ConsoleDevice {
+
+	static final int PORT = 13;
+
+	private static final int REMAPPING = 1;
+	private static final int TAB_AS_WHITESPACE = 2;
+	private static final int EAT_LEADING = 4;
+
+	private static final int EOF = Integer.MIN_VALUE;
+
+	private final NGaroVM vm;
+
+	/**
+	 * the token op 4 parked part way through: where it starts, or -1 if there
+	 * is none, how far it has come, and whether it is still eating leading
+	 * delimiters
+	 */
+	private int partial = -1;
+	private int partialEnd;
+	private boolean partialLeading;
+
+	ConsoleDevice(NGaroVM vm) {
+		this.vm = vm;
+	}
+
+	/**
+	 * the result of an op
+	 */
+	int handle(int op) {
+		final IStack data = vm.data;
+		switch (op) {
+		case 1:
+			return -1;
+		case 2:
+			puts(data.pop());
+			return 0;
+		case 3:
+			format(data.pop());
+			return 0;
+		case 4: {
+			int flags = data.pop();
+			int delimiter = data.pop();
+			int a = data.pop();
+			return accept(a, delimiter, flags);
+		}
+		default:
+			return 0;
+		}
+	}
+
+	private void puts(int a) {
+		final IMemory m = vm.memory;
+		for (int c = m.get(a); c != 0; c = m.get(++a)) {
+			vm.putc(c);
+		}
+	}
+
+	private void format(int a) {
+		final IMemory m = vm.memory;
+		final IStack data = vm.data;
+		while (true) {
+			int c = m.get(a++);
+			if (c == 0) {
+				return;
+			} else if (c == '\\') {
+				c = m.get(a++);
+				if (c == 'n') {
+					c = 10;
+				} else if (c == '\'') {
+					c = '"';
+				} else if (c == '[') {
+					vm.putc(27);
+				}
+			} else if (c == '%') {
+				c = m.get(a++);
+				if (c == 'd' || c == 'o' || c == 'x') {
+					String s = Integer.toString(data.pop(), c == 'd' ? 10 : c == 'o' ? 8 : 16).toUpperCase();
+					for (int i = 0; i < s.length(); i++) {
+						vm.putc(s.charAt(i));
+					}
+					continue;
+				} else if (c == 'c') {
+					c = data.pop();
+				} else if (c == 's') {
+					puts(data.pop());
+					continue;
+				}
+			}
+			if (c != 0) {
+				vm.putc(c);
+			}
+		}
+	}
+
+	private int accept(int a, int delimiter, int flags) {
+		final IMemory m = vm.memory;
+		final int start = a;
+		boolean leading = (flags & EAT_LEADING) != 0;
+		if (start == partial) {
+			a = partialEnd;
+			leading = partialLeading;
+		}
+		partial = -1;
+		int c;
+		boolean read;
+		do {
+			c = 0;
+			read = false;
+			if (leading) {
+				do {
+					c = getc(flags);
+					if (c == EOF) {
+						break;
+					} else if (c == 8) {
+						c = delimiter;
+					} else {
+						vm.putc(c);
+					}
+					read = true;
+				} while (c == delimiter);
+				if (c != EOF) {
+					m.set(a++, c);
+					leading = false;
+				}
+			}
+			while (c != EOF) {
+				c = getc(flags);
+				if (c == EOF) {
+					break;
+				}
+				read = true;
+				if (c == 8) {
+					a--;
+					if (a + 1 < start) {
+						a = start;
+					} else {
+						vm.putc(8);
+					}
+					continue;
+				}
+				vm.putc(c);
+				if (c == delimiter) {
+					break;
+				}
+				m.set(a++, c);
+			}
+			m.set(a, 0);
+			if (c != EOF) {
+				break;
+			}
+			// any input at all, rather than a line, lets the token go on
+			anyInput(true);
+			if (vm.inputToCome()) {
+				partial = start;
+				partialEnd = a;
+				partialLeading = leading;
+				vm.data.push(start);
+				vm.data.push(delimiter);
+				vm.data.push(flags);
+				vm.park(PORT);
+				return 0;
+			}
+			// input that came since the last read goes on with the token
+		} while (read);
+		anyInput(false);
+		if (c == EOF) {
+			vm.rm.flush();
+			vm.ip = m.size();
+		}
+		return a - start;
+	}
+
+	/**
+	 * tells a console whose input may not have come yet whether a token is
+	 * waiting for the rest of itself
+	 */
+	private void anyInput(boolean waiting) {
+		if (vm.rm instanceof INonBlockingReplIOManager) {
+			((INonBlockingReplIOManager) vm.rm).setAnyInput(waiting);
+		}
+	}
+
+	/**
+	 * the next key as getc has it, with the default remapKeys
+	 */
+	private int getc(int flags) {
+		while (true) {
+			int b;
+			try {
+				b = vm.getc();
+			} catch (Exception e) {
+				vm.rm.flush();
+				System.err.println(e);
+				return EOF;
+			}
+			if (b < 0) {
+				return EOF;
+			}
+			int c = (byte) b;
+			if (c != 0) {
+				return ws(c, flags);
+			}
+		}
+	}
+
+	private static int ws(int c, int flags) {
+		if (c == 127) {
+			c = 8;
+		}
+		if (c == 13) {
+			c = 10;
+		}
+		if ((flags & REMAPPING) == 0) {
+			return c;
+		}
+		if (c == 10) {
+			c = 32;
+		}
+		if ((flags & TAB_AS_WHITESPACE) == 0) {
+			return c;
+		}
+		return c == 9 ? 32 : c;
+	}
+
+}
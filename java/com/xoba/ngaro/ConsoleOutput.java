@@ -0,0 +1,215 @@
+package com.xoba.ngaro;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Console output collected in a large buffer instead of going to the stream a
+ * character at a time, each paying for the locks in PrintStream.
+ *
+ * The buffer is written out when it fills, on flush(), and, if anything is
+ * waiting, every interval milliseconds so that a script that prints and then
+ * computes for a while is still seen to make progress. With a writer thread,
+ * a full buffer is handed over to it and the vm carries on into a fresh one;
+ * flush() still returns only once everything is written, so whatever is printed
+ * to the stream or to stderr after it comes out after the console's output.
+ *
+ * write() is for one thread, the vm's, and takes no lock: it publishes how far
+ * it has come with an ordered store, and only locks to hand a full buffer
+ * over. flush(), from any thread, writes out what has been published since
+ * the last, under the lock. With a writer thread, the vm fills one of two
+ * buffers while the other is written.
+ */
+public class ConsoleOutput {
+
+	public static final int DEFAULT_SIZE = 64 * 1024;
+
+	public static final long DEFAULT_INTERVAL = 100;
+
+	private static ScheduledExecutorService ticker;
+
+	private final OutputStream out;
+
+	private final ExecutorService writer;
+
+	private final ScheduledFuture<?> tick;
+
+	private byte[] buf, spare;
+
+	/**
+	 * how far the vm has written into buf; the count as published to other
+	 * threads; and how much of that has been written out, under the lock
+	 */
+	private int n;
+	private final AtomicInteger published = new AtomicInteger();
+	private int start;
+
+	/**
+	 * the last write handed to the writer thread
+	 */
+	private Future<?> pending;
+
+	public ConsoleOutput(OutputStream out) {
+		this(out, DEFAULT_SIZE, DEFAULT_INTERVAL, false);
+	}
+
+	/**
+	 * an interval of zero or less writes only when the buffer fills or on
+	 * flush()
+	 */
+	public ConsoleOutput(OutputStream out, int size, long interval, boolean thread) {
+		this.out = out;
+		this.buf = new byte[size];
+		this.spare = thread ? new byte[size] : null;
+		this.writer = thread ? Executors.newSingleThreadExecutor(DAEMONS) : null;
+		if (interval > 0) {
+			Tick t = new Tick(this);
+			this.tick = t.future = ticker().scheduleWithFixedDelay(t, interval, interval, TimeUnit.MILLISECONDS);
+		} else {
+			this.tick = null;
+		}
+	}
+
+	/**
+	 * flushes a console on its interval until it is closed, or collected
+	 * without having been closed
+	 */
+	private static class Tick implements Runnable {
+
+		private final WeakReference<ConsoleOutput> console;
+
+		private volatile ScheduledFuture<?> future;
+
+		Tick(ConsoleOutput console) {
+			this.console = new WeakReference<ConsoleOutput>(console);
+		}
+
+		@Override
+		public void run() {
+			ConsoleOutput c = console.get();
+			if (c != null) {
+				try {
+					c.flush();
+				} catch (RuntimeException e) {
+					// which would otherwise cancel every later tick
+					System.err.println("ngaro console: " + e);
+				}
+			} else if (future != null) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	private static final ThreadFactory DAEMONS = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ngaro-console");
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	/**
+	 * one thread flushes every console on its interval
+	 */
+	private static synchronized ScheduledExecutorService ticker() {
+		if (ticker == null) {
+			ticker = Executors.newSingleThreadScheduledExecutor(DAEMONS);
+		}
+		return ticker;
+	}
+
+	public void write(int c) {
+		if (n == buf.length) {
+			drain();
+		}
+		buf[n++] = (byte) c;
+		published.lazySet(n);
+	}
+
+	/**
+	 * writes out everything written so far
+	 */
+	public synchronized void flush() {
+		if (pending != null) {
+			await();
+		}
+		final int end = published.get();
+		if (end > start) {
+			write(buf, start, end - start);
+			start = end;
+		}
+	}
+
+	/**
+	 * on the vm's thread, when buf is full: writes out the rest of it, or
+	 * hands it to the writer thread and carries on in the spare
+	 */
+	private synchronized void drain() {
+		if (writer == null) {
+			write(buf, start, n - start);
+		} else {
+			if (pending != null) {
+				await();
+			}
+			final byte[] b = buf;
+			final int off = start;
+			final int len = n - start;
+			pending = writer.submit(new Runnable() {
+				@Override
+				public void run() {
+					write(b, off, len);
+				}
+			});
+			buf = spare;
+			spare = b;
+		}
+		n = 0;
+		start = 0;
+		published.set(0);
+	}
+
+	private void await() {
+		try {
+			pending.get();
+			pending = null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void write(byte[] b, int off, int len) {
+		try {
+			out.write(b, off, len);
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * flushes, and stops the interval and the writer thread
+	 */
+	public synchronized void close() {
+		flush();
+		if (tick != null) {
+			tick.cancel(false);
+		}
+		if (writer != null) {
+			writer.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.xoba.ngaro;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Port 14: the kernel's find in one wait, from hash indexes of the names in
+ * the dictionary instead of a walk comparing each of them in turn.
+ *
+ * Op 1 returns -1, where a vm without the device leaves the 1 in the port. Op 2
+ * takes the address of a name and the header to search from, normally @last,
+ * and returns the newest header of that name, or zero. Op 3 drops every index,
+ * and must follow anything that changes the dictionary other than linking new
+ * headers onto it, as }}, :hide and ;chain do; library/fastFind.rx sees to
+ * that.
+ *
+ * The header searched from is compared directly: find searches each chain
+ * from a cell in dicts, whose link is whichever chain is there at the time.
+ * Below it there is an index for each header linked to: from last, and from
+ * the last word of each chain. When last has moved on from the top of an
+ * index, only the headers linked on since are added to it. A header found in
+ * an index is checked against the name before it is returned, and a name not
+ * in the index is looked for by a walk, the vm's own rather than Retro's, so
+ * that headers renamed or relinked behind the index's back are still found;
+ * finding one there drops every index.
+ */
+final class DictionaryDevice {
+
+	static final int PORT = 14;
+
+	/**
+	 * more places to search from than this, and the indexes start over
+	 */
+	private static final int MAX_INDEXES = 64;
+
+	private final NGaroVM vm;
+
+	/**
+	 * by the header searched from
+	 */
+	private final Map<Integer, Map<String, Integer>> indexes = new HashMap<Integer, Map<String, Integer>>();
+
+	DictionaryDevice(NGaroVM vm) {
+		this.vm = vm;
+	}
+
+	/**
+	 * the result of an op
+	 */
+	int handle(int op) {
+		switch (op) {
+		case 1:
+			return -1;
+		case 2: {
+			int from = vm.data.pop();
+			int name = vm.data.pop();
+			return find(name, from);
+		}
+		case 3:
+			indexes.clear();
+			return 0;
+		default:
+			return 0;
+		}
+	}
+
+	private int find(int name, int from) {
+		if (!header(from)) {
+			return 0;
+		} else if (matches(from, name)) {
+			return from;
+		}
+		final int next = vm.memory.get(from);
+		if (!header(next)) {
+			return 0;
+		}
+		Integer d = index(next).get(name(name));
+		if (d != null && matches(d, name)) {
+			return d;
+		}
+		d = walk(next, name);
+		if (d != 0) {
+			indexes.clear();
+		}
+		return d;
+	}
+
+	/**
+	 * the newest header of the name from h down, or zero
+	 */
+	private int walk(int h, int name) {
+		final IMemory m = vm.memory;
+		for (int n = 0; header(h) && n < m.size(); h = m.get(h), n++) {
+			if (matches(h, name)) {
+				return h;
+			}
+		}
+		return 0;
+	}
+
+	private Map<String, Integer> index(int from) {
+		Map<String, Integer> index = indexes.get(from);
+		if (index != null) {
+			return index;
+		}
+		final IMemory m = vm.memory;
+		List<Integer> added = new ArrayList<Integer>();
+		int h = from;
+		for (int n = 0; header(h) && n < m.size(); h = m.get(h), n++) {
+			index = indexes.remove(h);
+			if (index != null) {
+				break;
+			}
+			added.add(h);
+		}
+		if (index == null) {
+			if (indexes.size() >= MAX_INDEXES) {
+				indexes.clear();
+			}
+			index = new HashMap<String, Integer>();
+		}
+		// oldest first, so that newer headers of the same name replace them
+		for (int i = added.size() - 1; i >= 0; i--) {
+			index.put(name(added.get(i) + 3), added.get(i));
+		}
+		indexes.put(from, index);
+		return index;
+	}
+
+	private boolean header(int h) {
+		return h > 0 && h + 3 < vm.memory.size();
+	}
+
+	private String name(int a) {
+		final IMemory m = vm.memory;
+		StringBuilder b = new StringBuilder();
+		for (int c; a < m.size() && (c = m.get(a)) != 0; a++) {
+			b.append((char) c);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * whether the name of header d is the one at a, as compare has it
+	 */
+	private boolean matches(int d, int a) {
+		final IMemory m = vm.memory;
+		int b = d + 3;
+		while (a < m.size() && b < m.size()) {
+			int c = m.get(a++);
+			if (c != m.get(b++)) {
+				return false;
+			} else if (c == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
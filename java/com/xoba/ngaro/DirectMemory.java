@@ -0,0 +1,134 @@
+package com.xoba.ngaro;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Memory outside the Java heap, in a direct or memory-mapped buffer, so the
+ * garbage collector neither scans nor moves it.
+ *
+ * allocate() and load() give anonymous memory of their own. map() runs against
+ * an image file in place: privately, where stores are copy-on-write and never
+ * reach the file, or shared, where they go to the file and are seen by every
+ * process that maps it. Images saved by the vm hold its whole memory, so they
+ * map to a memory of the same size.
+ *
+ * Accesses go through IntBuffer.get() and put(), which check bounds and which
+ * the JVM compiles to plain loads and stores. Only the SWITCH engine runs on
+ * this memory; the others need the array behind Memory.
+ */
+public class DirectMemory implements IMemory {
+
+	private final IntBuffer memory;
+
+	private DirectMemory(IntBuffer memory) {
+		this.memory = memory;
+	}
+
+	/**
+	 * n cells of zeros
+	 */
+	public static DirectMemory allocate(int n) {
+		return new DirectMemory(ByteBuffer.allocateDirect(4 * n).order(ByteOrder.nativeOrder()).asIntBuffer());
+	}
+
+	/**
+	 * an image copied in bulk into a new memory of at least size cells
+	 */
+	public static DirectMemory load(File f, boolean littleEndian, int size) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = in.getChannel();
+			int n = (int) (ch.size() / 4);
+			DirectMemory mem = allocate(Math.max(n, size));
+			if (n > 0) {
+				mem.memory.put(ch.map(FileChannel.MapMode.READ_ONLY, 0, 4L * n)
+						.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asIntBuffer());
+				mem.memory.clear();
+			}
+			return mem;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * an image file mapped as memory, one cell per four bytes of it
+	 */
+	public static DirectMemory map(File f, boolean littleEndian, boolean shared) throws IOException {
+		// a private mapping needs a channel open for writing too, though it
+		// never writes
+		RandomAccessFile in = new RandomAccessFile(f, "rw");
+		try {
+			FileChannel ch = in.getChannel();
+			int n = (int) (ch.size() / 4);
+			return new DirectMemory(ch
+					.map(shared ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.PRIVATE, 0, 4L * n)
+					.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asIntBuffer());
+		} finally {
+			// the mapping stays valid after the channel is closed
+			in.close();
+		}
+	}
+
+	@Override
+	public int get(int pc) {
+		return memory.get(pc);
+	}
+
+	@Override
+	public void set(int pc, int value) {
+		memory.put(pc, value);
+	}
+
+	@Override
+	public int size() {
+		return memory.capacity();
+	}
+
+	@Override
+	public void clear() {
+		final int n = memory.capacity();
+		for (int i = 0; i < n; i++) {
+			memory.put(i, 0);
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof IMemory) {
+			IMemory m = (IMemory) o;
+			if (m.size() != this.size()) {
+				return false;
+			}
+			for (int i = 0; i < size(); i++) {
+				if (this.get(i) != m.get(i)) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * the same as Memory's for the same contents
+	 */
+	@Override
+	public int hashCode() {
+		int h = 1;
+		for (int i = 0; i < size(); i++) {
+			h = 31 * h + get(i);
+		}
+		return h;
+	}
+
+}
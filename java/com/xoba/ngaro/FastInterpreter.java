@@ -0,0 +1,668 @@
+package com.xoba.ngaro;
+
+import static com.xoba.ngaro.CodeCache.*;
+
+/**
+ * Runs the Ngaro opcode set directly on the arrays behind Memory and Stack.
+ *
+ * ip, both stack pointers and the top of the data stack live in locals of
+ * dispatch(); they are written back to the vm only around VM_WAIT, where
+ * handleDevices() needs to see them, and on exit.
+ *
+ * Instructions are dispatched from the CodeCache rather than from raw memory,
+ * so literals and resolved branch targets come from arg[] and jumps and calls
+ * no longer look for zero padding. Return addresses are only known at run
+ * time, so VM_RETURN still skips padding the way process() does.
+ *
+ * Calls in tail position may be decoded as TAIL_CALL, which leaves the return
+ * address of the caller in place of its own.
+ *
+ * Fused sequences (see CodeCache) each count the dispatches they save.
+ *
+ * With a Jit, calls count towards compiling their target; calls to a hot
+ * target leave dispatch() so that run() can enter its compiled code.
+ */
+final class FastInterpreter {
+
+	private final NGaroVM vm;
+
+	private final Stack data, address;
+
+	private final int[] m;
+
+	private final CodeCache cache;
+
+	private final Jit jit;
+
+	/**
+	 * dispatches saved by fused sequences so far
+	 */
+	private long eliminated;
+
+	/**
+	 * about the most dispatches in one call of dispatch(), so that the counts in
+	 * the vm never fall far behind; checked only on the jumps, loops and returns
+	 * that every long run goes through
+	 */
+	private static final int SLICE = 1 << 20;
+
+	/**
+	 * the slice for the next call of dispatch(), at most SLICE
+	 */
+	private int slice = SLICE;
+
+	/**
+	 * a return that leaves fewer addresses than this ends dispatch(), as the
+	 * return of a word called from Java does
+	 */
+	private int floor;
+
+	FastInterpreter(NGaroVM vm, boolean compile) {
+		this.vm = vm;
+		this.data = (Stack) vm.data;
+		this.address = (Stack) vm.address;
+		this.m = ((Memory) vm.memory).array();
+		this.cache = new CodeCache(m);
+		if (compile) {
+			this.jit = new Jit(m, cache, data.array(), address.array());
+			cache.jit = jit;
+		} else {
+			this.jit = null;
+		}
+		cache.intrinsics = vm.intrinsics;
+	}
+
+	long getEliminated() {
+		return eliminated;
+	}
+
+	/**
+	 * n cells from a on were stored by a device
+	 */
+	void stored(int a, int n) {
+		for (int i = 0; i < n; i++) {
+			cache.stored(a + i);
+		}
+	}
+
+	/**
+	 * the instruction count at which run() stops, which compiled code is held
+	 * to as well
+	 */
+	private long end = Long.MAX_VALUE;
+
+	/**
+	 * runs until the ip leaves memory, the vm has to wait for input or about
+	 * budget more instructions have been counted, in compiled code as well
+	 */
+	void run(long budget) {
+		end = budget > Long.MAX_VALUE - vm.instructions ? Long.MAX_VALUE : vm.instructions + budget;
+		while (!vm.waiting && vm.instructions < end) {
+			slice = (int) Math.min(SLICE, end - vm.instructions);
+			if (dispatch()) {
+				enter();
+				continue;
+			}
+			if (!decode()) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * runs until the address stack is back to depth, as it is once the word a
+	 * call from Java started returns, or the ip leaves memory
+	 */
+	void call(int depth) {
+		final long e = end;
+		end = Long.MAX_VALUE;
+		floor = depth + 1;
+		try {
+			while (!vm.waiting) {
+				slice = SLICE;
+				if (dispatch()) {
+					enter();
+					continue;
+				}
+				if (address.getDepth() <= depth || !decode()) {
+					break;
+				}
+			}
+		} finally {
+			floor = 0;
+			end = e;
+		}
+	}
+
+	/**
+	 * decodes the cell dispatch() stopped at, if it has to be, returning false
+	 * if the ip has left memory
+	 */
+	private boolean decode() {
+		final int ip = vm.ip;
+		if (ip >= m.length) {
+			return false;
+		} else if (ip >= cache.code.length) {
+			cache.grow(ip);
+		} else if (cache.code[ip] == UNDECODED) {
+			cache.decode(ip);
+		}
+		return true;
+	}
+
+	/**
+	 * runs the compiled code for the call just made, then continues either
+	 * after the call or wherever the compiled code bailed
+	 */
+	private void enter() {
+		final JitState st = jit.state;
+		st.executed = 0;
+		st.budget = end - vm.instructions;
+		int rp = address.getDepth();
+		int sp;
+		try {
+			sp = jit.call(st, vm.ip, data.getDepth(), rp);
+		} finally {
+			vm.instructions += st.executed;
+		}
+		int ip;
+		if (sp >= 0) {
+			ip = address.array()[rp--];
+		} else if (st.bail) {
+			st.bail = false;
+			sp = st.sp;
+			rp = st.rp;
+			ip = st.next;
+		} else {
+			throw new ArrayIndexOutOfBoundsException(sp);
+		}
+		data.setDepth(sp);
+		address.setDepth(rp);
+		if (ip + 1 < m.length && m[ip + 1] == 0)
+			ip++;
+		if (ip + 1 < m.length && m[ip + 1] == 0)
+			ip++;
+		vm.ip = ip + 1;
+	}
+
+	/**
+	 * runs until the ip leaves memory, reaches a cell that is not decoded yet or
+	 * has made about slice dispatches, or, returning true, until a call to a hot
+	 * target. Decoding stays out of this method so that it is never inlined
+	 * into the dispatch loop.
+	 */
+	private boolean dispatch() {
+
+		final int[] m = this.m;
+		final int[] p = ((Memory) vm.ports).array();
+		final int[] s = data.array();
+		final int[] a = address.array();
+		final CodeCache cache = this.cache;
+		final int[] code = cache.code;
+		final int[] arg = cache.arg;
+		final int[] arg2 = cache.arg2;
+		final int slice = this.slice;
+		final int floor = this.floor;
+		int limit = code.length;
+		final int[] heat = jit == null ? null : jit.heat;
+		boolean hot = false;
+		int saved = 0;
+
+		int ip = vm.ip;
+		int sp = data.getDepth();
+		int rp = address.getDepth();
+		int tos = s[sp];
+		int n = 0;
+
+		loop: while (ip < limit) {
+
+			n++;
+
+			switch (code[ip]) {
+
+			case UNDECODED: {
+				n--;
+				break loop;
+			}
+
+			case NOP: {
+				break;
+			}
+
+			case LIT: {
+				s[sp++] = tos;
+				tos = arg[ip++];
+				break;
+			}
+
+			case DUP: {
+				s[sp++] = tos;
+				break;
+			}
+
+			case DROP: {
+				tos = s[--sp];
+				break;
+			}
+
+			case SWAP: {
+				final int x = s[sp - 1];
+				s[sp - 1] = tos;
+				tos = x;
+				break;
+			}
+
+			case PUSH: {
+				a[++rp] = tos;
+				tos = s[--sp];
+				break;
+			}
+
+			case POP: {
+				s[sp++] = tos;
+				tos = a[rp--];
+				break;
+			}
+
+			case LOOP: {
+				tos--;
+				if (tos != 0 && tos > -1)
+					ip = arg[ip];
+				else {
+					tos = s[--sp];
+					ip++;
+				}
+				if (n >= slice)
+					limit = 0;
+				break;
+			}
+
+			case JUMP: {
+				ip = arg[ip];
+				if (n >= slice)
+					limit = 0;
+				break;
+			}
+
+			case RETURN: {
+				ip = a[rp--];
+				if (m[ip + 1] == 0)
+					ip++;
+				if (m[ip + 1] == 0)
+					ip++;
+				if (n >= slice || rp < floor)
+					limit = 0;
+				break;
+			}
+
+			case LT_JUMP: {
+				final int y = tos;
+				final int x = s[sp - 1];
+				tos = s[sp - 2];
+				sp -= 2;
+				if (y < x)
+					ip = arg[ip];
+				else
+					ip++;
+				break;
+			}
+
+			case GT_JUMP: {
+				final int y = tos;
+				final int x = s[sp - 1];
+				tos = s[sp - 2];
+				sp -= 2;
+				if (y > x)
+					ip = arg[ip];
+				else
+					ip++;
+				break;
+			}
+
+			case NE_JUMP: {
+				final int y = tos;
+				final int x = s[sp - 1];
+				tos = s[sp - 2];
+				sp -= 2;
+				if (y != x)
+					ip = arg[ip];
+				else
+					ip++;
+				break;
+			}
+
+			case EQ_JUMP: {
+				final int y = tos;
+				final int x = s[sp - 1];
+				tos = s[sp - 2];
+				sp -= 2;
+				if (y == x)
+					ip = arg[ip];
+				else
+					ip++;
+				break;
+			}
+
+			case FETCH: {
+				tos = m[tos];
+				break;
+			}
+
+			case STORE: {
+				m[tos] = s[sp - 1];
+				cache.stored(tos);
+				tos = s[sp - 2];
+				sp -= 2;
+				break;
+			}
+
+			case ADD: {
+				tos = s[--sp] + tos;
+				break;
+			}
+
+			case SUB: {
+				tos = s[--sp] - tos;
+				break;
+			}
+
+			case MUL: {
+				tos = s[--sp] * tos;
+				break;
+			}
+
+			case DIVMOD: {
+				final int x = tos;
+				final int y = s[sp - 1];
+				s[sp - 1] = y % x;
+				tos = y / x;
+				break;
+			}
+
+			case AND: {
+				tos = s[--sp] & tos;
+				break;
+			}
+
+			case OR: {
+				tos = s[--sp] | tos;
+				break;
+			}
+
+			case XOR: {
+				tos = s[--sp] ^ tos;
+				break;
+			}
+
+			case SHL: {
+				tos = s[--sp] << tos;
+				break;
+			}
+
+			case SHR: {
+				tos = s[--sp] >> tos;
+				break;
+			}
+
+			case ZERO_EXIT: {
+				if (tos == 0) {
+					tos = s[--sp];
+					ip = a[rp--];
+					if (rp < floor)
+						limit = 0;
+				}
+				break;
+			}
+
+			case INC: {
+				tos++;
+				break;
+			}
+
+			case DEC: {
+				tos--;
+				break;
+			}
+
+			case IN: {
+				final int x = tos;
+				tos = p[x];
+				p[x] = 0;
+				break;
+			}
+
+			case OUT: {
+				p[0] = 0;
+				final int x = tos;
+				final int y = s[sp - 1];
+				p[x] = y;
+				tos = s[sp - 2];
+				sp -= 2;
+				break;
+			}
+
+			case WAIT: {
+				// the counts are brought up to date for the devices
+				eliminated += saved;
+				vm.instructions += n + saved;
+				n = 0;
+				saved = 0;
+				s[sp] = tos;
+				vm.ip = ip;
+				data.setDepth(sp);
+				address.setDepth(rp);
+				vm.handleDevices();
+				ip = vm.ip;
+				if (vm.waiting)
+					limit = 0;
+				sp = data.getDepth();
+				rp = address.getDepth();
+				tos = s[sp];
+				break;
+			}
+
+			case CALL: {
+				a[++rp] = ip;
+				ip = arg[ip];
+				break;
+			}
+
+			case COUNTED_CALL: {
+				a[++rp] = ip;
+				ip = arg[ip];
+				if (++heat[ip + 1] >= Jit.THRESHOLD) {
+					hot = true;
+					break loop;
+				}
+				break;
+			}
+
+			case TAIL_CALL: {
+				ip = arg[ip];
+				break;
+			}
+
+			case COUNTED_TAIL_CALL: {
+				ip = arg[ip];
+				if (++heat[ip + 1] >= Jit.THRESHOLD) {
+					hot = true;
+					break loop;
+				}
+				break;
+			}
+
+			case INTRINSIC: {
+				// a new call, rather than a quote returning to one, counts as
+				// COUNTED_CALL does
+				if (heat != null && a[rp] != Intrinsics.mark(ip) && ++heat[arg2[ip] + 1] >= Jit.THRESHOLD) {
+					a[++rp] = ip;
+					ip = arg2[ip];
+					hot = true;
+					break loop;
+				}
+				s[sp] = tos;
+				data.setDepth(sp);
+				address.setDepth(rp);
+				ip = vm.intrinsics.run(arg[ip], ip, data, address);
+				sp = data.getDepth();
+				rp = address.getDepth();
+				tos = s[sp];
+				break;
+			}
+
+			case QUOTE: {
+				final int r = a[rp--];
+				s[sp++] = tos;
+				tos = r + 2;
+				ip = m[r + 1] - 1;
+				if (m[ip + 1] == 0)
+					ip++;
+				if (m[ip + 1] == 0)
+					ip++;
+				saved += 7;
+				break;
+			}
+
+			case DO: {
+				ip = tos - 1;
+				tos = s[--sp];
+				if (m[ip + 1] == 0)
+					ip++;
+				if (m[ip + 1] == 0)
+					ip++;
+				saved += 2;
+				break;
+			}
+
+			case OVER: {
+				s[sp] = tos;
+				tos = s[sp - 1];
+				sp++;
+				ip += 3;
+				saved += 3;
+				break;
+			}
+
+			case SWAP_PUSH: {
+				a[++rp] = s[--sp];
+				ip++;
+				saved++;
+				break;
+			}
+
+			case PUSH_DUP: {
+				a[++rp] = tos;
+				tos = s[sp - 1];
+				ip++;
+				saved++;
+				break;
+			}
+
+			case POP_RETURN: {
+				s[sp++] = tos;
+				tos = a[rp--];
+				ip = a[rp--];
+				if (m[ip + 1] == 0)
+					ip++;
+				if (m[ip + 1] == 0)
+					ip++;
+				if (rp < floor)
+					limit = 0;
+				saved++;
+				break;
+			}
+
+			case INC_RETURN: {
+				tos++;
+				ip = a[rp--];
+				if (m[ip + 1] == 0)
+					ip++;
+				if (m[ip + 1] == 0)
+					ip++;
+				if (rp < floor)
+					limit = 0;
+				saved++;
+				break;
+			}
+
+			case LIT_ADD: {
+				tos += arg[ip];
+				ip += 2;
+				saved++;
+				break;
+			}
+
+			case LIT_SUB: {
+				tos -= arg[ip];
+				ip += 2;
+				saved++;
+				break;
+			}
+
+			case LIT_FETCH: {
+				s[sp++] = tos;
+				tos = m[arg[ip]];
+				ip += 2;
+				saved++;
+				break;
+			}
+
+			case DUP_LIT_EQ_JUMP: {
+				if (arg[ip] == tos)
+					ip = arg2[ip];
+				else
+					ip += 4;
+				saved += 2;
+				break;
+			}
+
+			case DUP_LIT_NE_JUMP: {
+				if (arg[ip] != tos)
+					ip = arg2[ip];
+				else
+					ip += 4;
+				saved += 2;
+				break;
+			}
+
+			case LIT_CALL: {
+				s[sp++] = tos;
+				tos = arg[ip];
+				a[++rp] = ip + 2;
+				ip = arg2[ip];
+				saved++;
+				break;
+			}
+
+			case DUP_CALL: {
+				s[sp++] = tos;
+				a[++rp] = ip + 1;
+				ip = arg[ip];
+				saved++;
+				break;
+			}
+
+			case PUSH_CALL: {
+				a[++rp] = tos;
+				tos = s[--sp];
+				a[++rp] = ip + 1;
+				ip = arg[ip];
+				saved++;
+				break;
+			}
+
+			}
+
+			ip++;
+		}
+
+		eliminated += saved;
+		vm.instructions += n + saved;
+		s[sp] = tos;
+		vm.ip = ip;
+		data.setDepth(sp);
+		address.setDepth(rp);
+		return hot;
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.xoba.ngaro;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A file on port 4 from open to close, with what was done through it.
+ */
+@Name("com.xoba.ngaro.File")
+@Label("Ngaro File")
+@Category("Ngaro")
+@Description("A file opened by a Retro program, from open to close")
+@StackTrace(false)
+final class FileEvent extends jdk.jfr.Event {
+
+	@Label("Path")
+	String path;
+
+	@Label("Operations")
+	long operations;
+
+	@Label("Bytes Read")
+	@DataAmount
+	long bytesRead;
+
+	@Label("Bytes Written")
+	@DataAmount
+	long bytesWritten;
+
+}
@@ -1,23 +1,253 @@
 package com.xoba.ngaro;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.xoba.ngaro.inf.IMemory;
 import com.xoba.ngaro.inf.IOManager;
 
+/**
+ * Files for port 4, each behind a FileChannel with a buffer of its own.
+ *
+ * A handle's buffer holds either bytes read ahead of the current position, or
+ * bytes written at it and not yet in the file; the latter are written out on
+ * seek, on close, before reading, and when rxFlush() is called at the end of
+ * NGaroVM.run(). Positions and sizes include unwritten bytes, so to Retro a
+ * handle behaves exactly as an unbuffered file would.
+ *
+ * Each handle counts its operations and bytes in a FileStats, which other
+ * threads may read while the vm runs, and is a FileEvent for Flight Recorder
+ * from open to close.
+ */
 public class InputManager implements IOManager {
 
-	private final Map<Integer, RandomAccessFile> randomAccessFiles = new HashMap<Integer, RandomAccessFile>();
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private static class Handle {
+
+		private final FileChannel ch;
+
+		private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+
+		/**
+		 * file offset of the start of buf
+		 */
+		private long start;
+
+		/**
+		 * whether buf holds bytes written rather than read
+		 */
+		private boolean dirty;
+
+		Handle(RandomAccessFile raf) throws IOException {
+			this.ch = raf.getChannel();
+			this.start = raf.getFilePointer();
+			buf.limit(0);
+		}
+
+		/**
+		 * reads ahead from the current position; false at end of file
+		 */
+		private boolean fill() throws IOException {
+			start += buf.position();
+			buf.clear();
+			int n = ch.read(buf, start);
+			buf.flip();
+			return n > 0;
+		}
+
+		int read() throws IOException {
+			if (dirty) {
+				flush();
+			}
+			if (!buf.hasRemaining() && !fill()) {
+				return -1;
+			}
+			return buf.get() & 0xff;
+		}
+
+		/**
+		 * reads up to n bytes into cells from a on, returning how many
+		 */
+		int read(IMemory m, int a, int n) throws IOException {
+			if (dirty) {
+				flush();
+			}
+			int i = 0;
+			while (i < n && (buf.hasRemaining() || fill())) {
+				final int k = Math.min(n - i, buf.remaining());
+				for (int j = 0; j < k; j++) {
+					m.set(a + i + j, buf.get() & 0xff);
+				}
+				i += k;
+			}
+			return i;
+		}
+
+		/**
+		 * reads up to n bytes of a line into cells from a on, and a zero after
+		 * them; the byte that ends the line is consumed but not stored
+		 */
+		int readLine(IMemory m, int a, int n) throws IOException {
+			int i = 0;
+			int c = 0;
+			while (i < n && (c = read()) >= 0 && (c < 10 || c > 13)) {
+				m.set(a + i++, c);
+			}
+			m.set(a + i, 0);
+			return i == 0 && c < 0 ? -1 : i;
+		}
+
+		void write(int c) throws IOException {
+			if (dirty && !buf.hasRemaining()) {
+				flush();
+			}
+			if (!dirty) {
+				start += buf.position();
+				buf.clear();
+				dirty = true;
+			}
+			buf.put((byte) c);
+		}
+
+		void write(IMemory m, int a, int n) throws IOException {
+			for (int i = 0; i < n; i++) {
+				write(m.get(a + i));
+			}
+		}
+
+		void flush() throws IOException {
+			if (dirty) {
+				buf.flip();
+				while (buf.hasRemaining()) {
+					ch.write(buf, start + buf.position());
+				}
+				start += buf.limit();
+				buf.clear();
+				buf.limit(0);
+				dirty = false;
+			}
+		}
+
+		long position() {
+			return start + buf.position();
+		}
+
+		void seek(long pos) throws IOException {
+			if (pos < 0) {
+				// as RandomAccessFile.seek() fails
+				throw new IOException("Negative seek offset");
+			}
+			if (!dirty && pos >= start && pos <= start + buf.limit()) {
+				buf.position((int) (pos - start));
+			} else {
+				flush();
+				start = pos;
+				buf.limit(0);
+			}
+		}
+
+		long size() throws IOException {
+			return dirty ? Math.max(ch.size(), position()) : ch.size();
+		}
+
+		void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				ch.close();
+			}
+		}
+	}
+
+	/**
+	 * operations on one handle, and the bytes they moved
+	 */
+	public static class FileStats {
+
+		private final int handle;
+		private final String name;
+		private final FileEvent event = new FileEvent();
+
+		private volatile long operations, bytesRead, bytesWritten;
+
+		FileStats(int handle, String name) {
+			this.handle = handle;
+			this.name = name;
+			event.begin();
+		}
+
+		public int getHandle() {
+			return handle;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getOperations() {
+			return operations;
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		void closed() {
+			event.end();
+			if (event.shouldCommit()) {
+				event.path = name;
+				event.operations = operations;
+				event.bytesRead = bytesRead;
+				event.bytesWritten = bytesWritten;
+				event.commit();
+			}
+		}
+	}
+
+	private final Map<Integer, Handle> handles = new HashMap<Integer, Handle>();
+
+	private final Map<Integer, FileStats> stats = new ConcurrentHashMap<Integer, FileStats>();
+
+	/**
+	 * over every handle, open or closed
+	 */
+	private volatile long operations, bytesRead, bytesWritten;
+
+	private final boolean blocks;
+
+	public InputManager() {
+		this(true);
+	}
+
+	/**
+	 * with blocks false, Retro is told that port 4 ops -9 to -11 are missing,
+	 * and moves files a byte at a time as it has to on other vms
+	 */
+	public InputManager(boolean blocks) {
+		this.blocks = blocks;
+	}
+
 	private final Map<Integer, File> files = new HashMap<Integer, File>();
 
 	private int findOpenSlot() {
 		Random random = new Random();
 		while (true) {
 			int n = 1 + random.nextInt(Integer.MAX_VALUE - 10);
-			if (!randomAccessFiles.containsKey(n)) {
+			if (!handles.containsKey(n)) {
 				return n;
 			}
 		}
@@ -83,8 +313,14 @@ public class InputManager implements IOManager {
 		if (raf == null) {
 			return 0;
 		} else {
+			try {
+				handles.put(slot, new Handle(raf));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 			files.put(slot, f);
-			randomAccessFiles.put(slot, raf);
+			stats.put(slot, new FileStats(slot, f.getPath()));
+			count(slot, 0, 0);
 			return slot;
 		}
 
@@ -93,7 +329,8 @@ public class InputManager implements IOManager {
 	@Override
 	public int rxReadFile(int slot) {
 		try {
-			int c = randomAccessFiles.get(slot).read();
+			int c = handles.get(slot).read();
+			count(slot, c < 0 ? 0 : 1, 0);
 			if (c < 0) {
 				return 0;
 			} else {
@@ -107,22 +344,66 @@ public class InputManager implements IOManager {
 	@Override
 	public int rxWriteFile(int slot, int c) {
 		try {
-			randomAccessFiles.get(slot).write(c);
+			handles.get(slot).write(c);
+			count(slot, 0, 1);
 			return 1;
 		} catch (Exception e) {
 			return 0;
 		}
 	}
 
+	@Override
+	public boolean rxBlocks() {
+		return blocks;
+	}
+
+	@Override
+	public int rxReadBlock(int slot, IMemory m, int a, int n) {
+		try {
+			final int k = handles.get(slot).read(m, a, n);
+			count(slot, k, 0);
+			return k;
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public int rxWriteBlock(int slot, IMemory m, int a, int n) {
+		try {
+			handles.get(slot).write(m, a, n);
+			count(slot, 0, n);
+			return n;
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public int rxReadLine(int slot, IMemory m, int a, int n) {
+		try {
+			final int k = handles.get(slot).readLine(m, a, n);
+			count(slot, Math.max(k, 0), 0);
+			return k;
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
 	@Override
 	public int rxCloseFile(int slot) {
 		try {
 			try {
-				randomAccessFiles.get(slot).close();
+				handles.get(slot).close();
+				count(slot, 0, 0);
 				return 0;
 			} finally {
-				randomAccessFiles.remove(slot);
+				handles.remove(slot);
 				files.remove(slot);
+				FileStats f = stats.remove(slot);
+				if (f != null) {
+					f.closed();
+				}
 			}
 		} catch (Exception e) {
 			throw new RuntimeException(e);
@@ -132,7 +413,9 @@ public class InputManager implements IOManager {
 	@Override
 	public int rxGetFilePosition(int slot) {
 		try {
-			return (int) randomAccessFiles.get(slot).getFilePointer();
+			final int pos = (int) handles.get(slot).position();
+			count(slot, 0, 0);
+			return pos;
 		} catch (Exception e) {
 			return -1;
 		}
@@ -141,7 +424,8 @@ public class InputManager implements IOManager {
 	@Override
 	public int rxSetFilePosition(int slot, int pos) {
 		try {
-			randomAccessFiles.get(slot).seek(pos);
+			handles.get(slot).seek(pos);
+			count(slot, 0, 0);
 			return 0;
 		} catch (Exception e) {
 			return -1;
@@ -151,7 +435,9 @@ public class InputManager implements IOManager {
 	@Override
 	public int rxGetFileSize(int slot) {
 		try {
-			return (int) randomAccessFiles.get(slot).length();
+			final int size = (int) handles.get(slot).size();
+			count(slot, 0, 0);
+			return size;
 		} catch (Exception e) {
 			return -1;
 		}
@@ -167,4 +453,60 @@ public class InputManager implements IOManager {
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * one operation on a handle, which moved the bytes given
+	 */
+	private void count(int slot, long read, long written) {
+		final FileStats f = stats.get(slot);
+		if (f != null) {
+			f.operations++;
+			f.bytesRead += read;
+			f.bytesWritten += written;
+		}
+		operations++;
+		bytesRead += read;
+		bytesWritten += written;
+	}
+
+	/**
+	 * the handles open now
+	 */
+	public Collection<FileStats> getFiles() {
+		return stats.values();
+	}
+
+	public long getOperations() {
+		return operations;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public void rxCloseAll() {
+		for (Integer slot : new ArrayList<Integer>(handles.keySet())) {
+			try {
+				rxCloseFile(slot);
+			} catch (RuntimeException e) {
+				System.err.println(e);
+			}
+		}
+	}
+
+	@Override
+	public void rxFlush() {
+		for (Handle h : handles.values()) {
+			try {
+				h.flush();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+		}
+	}
+
+}
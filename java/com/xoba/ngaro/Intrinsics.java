@@ -0,0 +1,263 @@
+package com.xoba.ngaro;
+
+import com.xoba.ngaro.inf.IMemory;
+import com.xoba.ngaro.inf.IStack;
+
+/**
+ * Native versions of the kernel's times, iter, while, until, dip, sip, bi and
+ * tri, run in place of their Ngaro code wherever one of them is called.
+ *
+ * The words are looked up by name when the vm starts, from the dictionary
+ * header in last (the kernel's first variable, at cell 2) down; of each name
+ * the oldest header, the kernel's own, is taken. A word only runs natively
+ * while the two cells of padding at its start are zero: :is stores a jump
+ * there and the word runs whatever it is revectored to, until :devector puts
+ * the zeros and so the kernel's code back.
+ *
+ * Quotes are called through the address stack, as the kernel's code calls
+ * them, so nothing here recurses and a quote may do anything it could under
+ * that code. When there is more to do after a quote returns, the call leaves a
+ * frame: its state, a mark for the cell it was called from, and that cell less
+ * one as the return address. The quote then returns to the call, which finds
+ * its mark on top and carries on. The last quote is called as from the cell
+ * itself, so it returns to whatever follows.
+ *
+ * A mark is an ordinary negative number, which code pushing that same number
+ * onto the address stack could pass off as a frame; SWITCH, the reference
+ * engine, therefore only runs these when asked to (see NGaroVM.setIntrinsics).
+ */
+final class Intrinsics {
+
+	static final int TIMES = 0;
+	static final int ITER = 1;
+	static final int WHILE = 2;
+	static final int UNTIL = 3;
+	static final int DIP = 4;
+	static final int SIP = 5;
+	static final int BI = 6;
+	static final int TRI = 7;
+
+	private static final String[] NAMES = { "times", "iter", "while", "until", "dip", "sip", "bi", "tri" };
+
+	/**
+	 * the kernel variable holding the newest dictionary header
+	 */
+	private static final int LAST = 2;
+
+	private final IMemory memory;
+
+	/**
+	 * one more than the intrinsic for each address, zero for none
+	 */
+	private final int[] kinds;
+
+	private Intrinsics(IMemory memory, int[] kinds) {
+		this.memory = memory;
+		this.kinds = kinds;
+	}
+
+	/**
+	 * the intrinsics for the words in memory, or null if it has none of them
+	 */
+	static Intrinsics resolve(IMemory memory) {
+		final int[] xts = new int[NAMES.length];
+		int top = -1;
+		for (int h = memory.get(LAST), n = 0; h > 0 && h + 3 < memory.size() && n < memory.size(); h = memory
+				.get(h), n++) {
+			for (int i = 0; i < NAMES.length; i++) {
+				if (named(memory, h + 3, NAMES[i])) {
+					xts[i] = memory.get(h + 2);
+				}
+			}
+		}
+		for (int i = 0; i < xts.length; i++) {
+			if (xts[i] > 0 && xts[i] + 1 < memory.size() && memory.get(xts[i]) == 0 && memory.get(xts[i] + 1) == 0) {
+				top = Math.max(top, xts[i]);
+			} else {
+				xts[i] = 0;
+			}
+		}
+		if (top < 0) {
+			return null;
+		}
+		final int[] kinds = new int[top + 1];
+		for (int i = 0; i < xts.length; i++) {
+			if (xts[i] > 0) {
+				kinds[xts[i]] = i + 1;
+			}
+		}
+		return new Intrinsics(memory, kinds);
+	}
+
+	private static boolean named(IMemory memory, int a, String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (a + i >= memory.size() || memory.get(a + i) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return a + name.length() < memory.size() && memory.get(a + name.length()) == 0;
+	}
+
+	/**
+	 * the intrinsic a call to target runs, or -1 if there is none
+	 */
+	int kind(int target) {
+		if (target < 0 || target >= kinds.length || kinds[target] == 0) {
+			return -1;
+		}
+		return memory.get(target) == 0 && memory.get(target + 1) == 0 ? kinds[target] - 1 : -1;
+	}
+
+	/**
+	 * runs an intrinsic for the call in cell c, returning the ip to continue
+	 * from, before the vm's own increment
+	 */
+	int run(int kind, int c, IStack data, IStack address) {
+		final boolean resumed = address.getDepth() > 0 && address.peek() == mark(c);
+		if (resumed) {
+			address.pop();
+		}
+		switch (kind) {
+		case TIMES: {
+			int n, q;
+			if (resumed) {
+				n = address.pop();
+				q = address.pop();
+			} else {
+				q = data.pop();
+				n = data.pop();
+				if (n < 1) {
+					return c;
+				}
+			}
+			if (n == 1) {
+				return call(q, c, address);
+			}
+			address.push(q);
+			address.push(n - 1);
+			return callBack(q, c, address);
+		}
+		case ITER: {
+			int n, i, q;
+			if (resumed) {
+				n = address.pop();
+				i = address.pop() + 1;
+				q = address.pop();
+			} else {
+				q = data.pop();
+				n = data.pop();
+				i = 0;
+				if (n < 1) {
+					return c;
+				}
+			}
+			data.push(i);
+			if (i == n - 1) {
+				return call(q, c, address);
+			}
+			address.push(q);
+			address.push(i);
+			address.push(n);
+			return callBack(q, c, address);
+		}
+		case WHILE:
+		case UNTIL: {
+			int q;
+			if (resumed) {
+				q = address.pop();
+				final int f = data.pop();
+				if (kind == WHILE ? f == 0 : f == -1) {
+					return c;
+				}
+			} else {
+				q = data.pop();
+			}
+			address.push(q);
+			return callBack(q, c, address);
+		}
+		case DIP:
+		case SIP: {
+			if (resumed) {
+				data.push(address.pop());
+				return c;
+			}
+			final int q = data.pop();
+			address.push(kind == DIP ? data.pop() : data.peek());
+			return callBack(q, c, address);
+		}
+		case BI: {
+			if (resumed) {
+				final int x = address.pop();
+				final int q = address.pop();
+				data.push(x);
+				return call(q, c, address);
+			}
+			final int q = data.pop();
+			final int p = data.pop();
+			address.push(q);
+			address.push(data.peek());
+			return callBack(p, c, address);
+		}
+		case TRI: {
+			if (resumed) {
+				final int x = address.pop();
+				final int q = address.pop();
+				data.push(x);
+				if (q == 0) {
+					return call(address.pop(), c, address);
+				}
+				address.push(0);
+				address.push(x);
+				return callBack(q, c, address);
+			}
+			final int r = data.pop();
+			final int q = data.pop();
+			final int p = data.pop();
+			address.push(r);
+			address.push(q);
+			address.push(data.peek());
+			return callBack(p, c, address);
+		}
+		default:
+			throw new IllegalArgumentException("no intrinsic " + kind);
+		}
+	}
+
+	/**
+	 * what a call from cell c leaves on the address stack under a quote's
+	 * return address: a negative number, which no return address is
+	 */
+	static int mark(int c) {
+		return Integer.MIN_VALUE + c;
+	}
+
+	/**
+	 * calls q as from cell c
+	 */
+	private int call(int q, int c, IStack address) {
+		address.push(c);
+		return entry(q);
+	}
+
+	/**
+	 * calls q to return to the call in cell c
+	 */
+	private int callBack(int q, int c, IStack address) {
+		address.push(mark(c));
+		address.push(c - 1);
+		return entry(q);
+	}
+
+	/**
+	 * the ip from which a call to q continues, past any padding
+	 */
+	private int entry(int q) {
+		int ip = q - 1;
+		if (memory.get(ip + 1) == 0)
+			ip++;
+		if (memory.get(ip + 1) == 0)
+			ip++;
+		return ip;
+	}
+
+}
@@ -0,0 +1,391 @@
+package com.xoba.ngaro;
+
+import static com.xoba.ngaro.NGaroVM.*;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compiles hot words to JVM bytecode for the JIT engine.
+ *
+ * FastInterpreter counts calls per target; once a target has been called
+ * THRESHOLD times it is compiled together with every word and quote it calls,
+ * up to MAX_WORDS of them, into one hidden class (see JitEmitter). A word is
+ * every cell its entry reaches through jumps and branches, so tail jumps into
+ * shared code such as true and false are compiled in place.
+ *
+ * Only words that keep the address stack balanced are compiled: no VM_POP
+ * below their own frame, and VM_RETURN only with nothing of theirs left on it.
+ * Such a word never looks at its return address, so compiled code only writes
+ * return addresses when it has to hand over to the interpreter. quote and do,
+ * which do reach below their frame, are recognized at call sites instead.
+ * VM_IN, VM_OUT, VM_WAIT, calls to anything not compiled, and any store into a
+ * compiled cell, after which all compiled code is dropped, bail out to the
+ * interpreter.
+ *
+ * A word the emitter cannot assemble, such as one whose method would be too
+ * large, is left to the interpreter; with the ngaro.jit.verbose system
+ * property true, the first such failure is printed. Generated code that the
+ * JVM will not load is a bug in the emitter, and is thrown.
+ */
+final class Jit {
+
+	static interface ICompiled {
+		/**
+		 * runs the compiled word entered at the given cell
+		 */
+		public int run(JitState st, int entry, int sp, int rp);
+	}
+
+	static final int THRESHOLD = 1000;
+
+	private static final int MAX_CELLS = 128;
+	private static final int MAX_WORDS = 64;
+
+	private static final boolean VERBOSE = Boolean.getBoolean("ngaro.jit.verbose");
+
+	/**
+	 * whether a failure to assemble has been printed
+	 */
+	private static final AtomicBoolean reported = new AtomicBoolean();
+
+	final int[] m;
+
+	private final TailCalls tails;
+
+	final JitState state;
+
+	/**
+	 * calls seen per entry cell; THRESHOLD or more once compiled, negative if
+	 * it cannot be compiled
+	 */
+	final int[] heat;
+
+	private final ICompiled[] entries;
+
+	private final List<Integer> compiled = new ArrayList<Integer>();
+
+	private final BitSet watched = new BitSet();
+
+	Jit(int[] m, CodeCache cache, int[] s, int[] a) {
+		this.m = m;
+		this.tails = cache.tails;
+		this.heat = new int[m.length + 1];
+		this.entries = new ICompiled[m.length];
+		this.state = new JitState(this, cache, m, s, a);
+	}
+
+	/**
+	 * the first cell executed when continuing from ip v, after skipping padding
+	 * the way VM_RETURN does
+	 */
+	int after(int v) {
+		int ip = v;
+		for (int i = 0; i < 2 && ip + 1 >= 0 && ip + 1 < m.length && m[ip + 1] == 0; i++) {
+			ip++;
+		}
+		return ip + 1;
+	}
+
+	/**
+	 * runs compiled code from ip v+1, compiling it first if it has become hot;
+	 * bails if there is none
+	 */
+	int call(JitState st, int v, int sp, int rp) {
+		final int e = after(v);
+		if (e >= 0 && e < m.length) {
+			ICompiled c = entries[e];
+			if (c == null) {
+				if (isDo(e)) {
+					// a quote run by do itself, as sip does: go straight to it
+					return call(st, st.s[sp] - 1, sp - 1, rp);
+				}
+				if (heat[e] >= 0 && ++heat[e] >= THRESHOLD) {
+					c = compile(e);
+					if (c == null) {
+						heat[e] = Integer.MIN_VALUE;
+					}
+				}
+			}
+			if (c != null) {
+				heat[e] = THRESHOLD;
+				return c.run(st, e, sp, rp);
+			}
+		}
+		return st.bail(v, sp, rp);
+	}
+
+	/**
+	 * called for every store; true if it changed compiled code, which is then
+	 * all thrown away
+	 */
+	boolean stored(int a) {
+		if (!watched.get(a)) {
+			return false;
+		}
+		invalidate();
+		return true;
+	}
+
+	/**
+	 * throws away all compiled code
+	 */
+	void invalidate() {
+		for (int e : compiled) {
+			entries[e] = null;
+			heat[e] = 0;
+		}
+		compiled.clear();
+		watched.clear();
+	}
+
+	private boolean matches(int a, int... ops) {
+		if (a < 0 || a + ops.length > m.length) {
+			return false;
+		}
+		for (int i = 0; i < ops.length; i++) {
+			if (m[a + i] != ops[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	boolean isQuote(int e) {
+		return matches(e, VM_POP, VM_INC, VM_DUP, VM_FETCH, VM_DEC, VM_PUSH, VM_INC, VM_RETURN);
+	}
+
+	boolean isDo(int e) {
+		return matches(e, VM_DEC, VM_PUSH, VM_RETURN);
+	}
+
+	static boolean isCall(int op) {
+		return op < 0 || op > VM_WAIT;
+	}
+
+	/**
+	 * The cells of one word, as reached from its entry, with its control flow
+	 * and the depth of its own part of the address stack at each cell.
+	 */
+	final class Word {
+
+		final int entry;
+
+		final BitSet cells = new BitSet();
+
+		/**
+		 * every cell whose contents the compiled word depends on
+		 */
+		final BitSet watch = new BitSet();
+
+		final Set<Integer> callees = new LinkedHashSet<Integer>();
+
+		/**
+		 * calls to the word itself in tail position, which are jumps to the
+		 * entry
+		 */
+		final BitSet tail = new BitSet();
+
+		/**
+		 * whether the address stack is balanced on every path
+		 */
+		boolean clean = true;
+
+		final Map<Integer, Integer> depth = new HashMap<Integer, Integer>();
+
+		/**
+		 * successors of each cell, compiled or not
+		 */
+		final Map<Integer, int[]> next = new HashMap<Integer, int[]>();
+
+		/**
+		 * for cells with exactly one way in, from an earlier cell or the entry,
+		 * that predecessor (-1 for the entry); absent for all others
+		 */
+		final Map<Integer, Integer> single = new HashMap<Integer, Integer>();
+
+		/**
+		 * number of VM_RETURN and VM_ZERO_EXIT cells
+		 */
+		int returns;
+
+		Word(int entry) {
+			this.entry = entry;
+			LinkedList<int[]> work = new LinkedList<int[]>();
+			work.add(new int[] { entry, 0 });
+			while (!work.isEmpty() && clean) {
+				final int[] w = work.removeFirst();
+				final int c = w[0], d = w[1];
+				if (c < 0 || c >= m.length - 1 || depth.size() == MAX_CELLS && !depth.containsKey(c)) {
+					continue;
+				}
+				Integer seen = depth.get(c);
+				if (seen != null) {
+					clean = seen == d;
+					continue;
+				}
+				depth.put(c, d);
+				cells.set(c);
+				watch.set(c);
+				final int op = m[c];
+				int[] n;
+				int dn = d;
+				switch (op) {
+				case VM_LIT:
+					watch.set(c + 1);
+					n = new int[] { c + 2 };
+					break;
+				case VM_LOOP:
+				case VM_LT_JUMP:
+				case VM_GT_JUMP:
+				case VM_NE_JUMP:
+				case VM_EQ_JUMP:
+					watch.set(c + 1);
+					n = new int[] { c + 2, target(m[c + 1]) };
+					break;
+				case VM_JUMP:
+					watch.set(c + 1);
+					n = new int[] { target(m[c + 1]) };
+					break;
+				case VM_PUSH:
+					n = new int[] { c + 1 };
+					dn = d + 1;
+					break;
+				case VM_POP:
+					clean = d > 0;
+					n = new int[] { c + 1 };
+					dn = d - 1;
+					break;
+				case VM_RETURN:
+					clean = clean && d == 0;
+					returns++;
+					n = new int[0];
+					break;
+				case VM_ZERO_EXIT:
+					clean = d == 0;
+					returns++;
+					n = new int[] { c + 1 };
+					break;
+				case VM_IN:
+				case VM_OUT:
+				case VM_WAIT:
+					n = new int[0];
+					break;
+				default:
+					if (isCall(op)) {
+						final int t = target(op);
+						if (isQuote(t)) {
+							watch.set(t, t + 8);
+							watch.set(c + 1);
+							callees.add(after(c + 1));
+							n = new int[] { target(m[c + 1]) };
+						} else {
+							if (isDo(t)) {
+								watch.set(t, t + 3);
+								n = new int[] { c + 1 };
+							} else if (t == entry && d == 0 && tails.isTail(c) && tails.safe(entry)) {
+								watch.set(c + 1);
+								tail.set(c);
+								n = new int[] { entry };
+							} else {
+								callees.add(t);
+								n = new int[] { c + 1 };
+							}
+						}
+					} else {
+						n = new int[] { c + 1 };
+					}
+				}
+				next.put(c, n);
+				for (int x : n) {
+					work.add(new int[] { x, dn });
+				}
+			}
+
+			Map<Integer, Integer> preds = new HashMap<Integer, Integer>();
+			preds.put(entry, 1);
+			single.put(entry, -1);
+			for (Map.Entry<Integer, int[]> e : next.entrySet()) {
+				for (int x : e.getValue()) {
+					Integer p = preds.get(x);
+					preds.put(x, p == null ? 1 : p + 1);
+					single.put(x, e.getKey());
+				}
+			}
+			for (Map.Entry<Integer, Integer> e : preds.entrySet()) {
+				final int x = e.getKey();
+				if (e.getValue() > 1 || single.get(x) >= x) {
+					single.remove(x);
+				}
+			}
+		}
+
+		/**
+		 * the first cell executed after a transfer to x, watching the padding
+		 * skipped on the way
+		 */
+		int target(int x) {
+			int e = after(x - 1);
+			if (e > x && x >= 0) {
+				watch.set(x, e + 1);
+			}
+			return e;
+		}
+
+		int size() {
+			return depth.size();
+		}
+	}
+
+	private ICompiled compile(int entry) {
+		Map<Integer, Word> words = new LinkedHashMap<Integer, Word>();
+		LinkedList<Integer> todo = new LinkedList<Integer>();
+		todo.add(entry);
+		while (!todo.isEmpty() && words.size() < MAX_WORDS) {
+			int e = todo.removeFirst();
+			if (!words.containsKey(e) && e >= 0 && e < m.length && heat[e] >= 0) {
+				Word w = new Word(e);
+				if (w.clean) {
+					words.put(e, w);
+					todo.addAll(w.callees);
+				} else if (e == entry) {
+					return null;
+				}
+			}
+		}
+		byte[] b;
+		try {
+			b = JitEmitter.assemble(this, words);
+		} catch (RuntimeException e) {
+			if (VERBOSE && reported.compareAndSet(false, true)) {
+				System.err.println("ngaro jit: cannot compile the word at " + entry + ": " + e);
+			}
+			return null;
+		}
+		ICompiled c;
+		try {
+			Class<?> k = MethodHandles.lookup().defineHiddenClass(b, true).lookupClass();
+			c = (ICompiled) k.getDeclaredConstructor().newInstance();
+		} catch (LinkageError e) {
+			throw new IllegalStateException("compiled code for the word at " + entry + " does not load", e);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+		for (Word w : words.values()) {
+			entries[w.entry] = c;
+			compiled.add(w.entry);
+			watched.or(w.watch);
+		}
+		return c;
+	}
+
+}
@@ -0,0 +1,956 @@
+package com.xoba.ngaro;
+
+import static com.xoba.ngaro.ClassAssembler.*;
+import static com.xoba.ngaro.NGaroVM.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Writes a cluster of Jit.Words as one hidden class: a static method per word,
+ * int w&lt;entry&gt;(JitState st, int sp, int rp), and ICompiled.run() switching
+ * on the entry.
+ *
+ * Inside a method the top of the data stack, and whatever the word has pushed
+ * to the address stack, are kept track of at compile time as constants or JVM
+ * locals, and only written out where control flow joins, before calls and on
+ * the way out. That way the quotes handed to combinators stay known, and small
+ * words, and quotes run with do, are inlined; other calls go straight to their
+ * method in the class, or through JitState.call().
+ *
+ * Each method counts the cells it runs in a local, which goes to
+ * JitState.count() on the way out, and to JitState.spend() on a jump back once
+ * it has reached SPEND; if that finds the budget gone, the jump bails to the
+ * interpreter instead, so that a loop in compiled code stops with the rest.
+ */
+final class JitEmitter {
+
+	private static final String CLASS = "com/xoba/ngaro/Compiled";
+	private static final String STATE = "com/xoba/ngaro/JitState";
+	private static final String STATE_DESC = "L" + STATE + ";";
+	private static final String WORD_DESC = "(" + STATE_DESC + "II)I";
+
+	// locals
+
+	private static final int ST = 0, SP = 1, RP = 2, M = 3, S = 4, A = 5, N = 6;
+	private static final int FIRST = 7, LIMIT = 71;
+
+	/**
+	 * about the most cells counted between checks of the budget
+	 */
+	private static final int SPEND = 1 << 12;
+
+	private static final int MAX_INLINE = 48;
+	private static final int MAX_NESTING = 8;
+	private static final int MAX_TOTAL = 400;
+
+	/**
+	 * a value on the compile-time stacks: a constant, or a local holding it
+	 */
+	private static final class Val {
+		final boolean constant;
+		final int v;
+
+		Val(boolean constant, int v) {
+			this.constant = constant;
+			this.v = v;
+		}
+	}
+
+	/**
+	 * an address stack entry pushed inside the method
+	 */
+	private static final class Slot {
+
+		/**
+		 * null if only a[] has it
+		 */
+		final Val val;
+
+		final boolean written;
+
+		/**
+		 * the return address of an inlined call, which is only written out if
+		 * the interpreter has to see it
+		 */
+		final boolean ret;
+
+		Slot(Val val, boolean written, boolean ret) {
+			this.val = val;
+			this.written = written;
+			this.ret = ret;
+		}
+	}
+
+	private static final Slot UNKNOWN = new Slot(null, true, false);
+
+	private static final class State {
+		final List<Val> vs;
+		final List<Slot> va;
+		final int free;
+
+		State(List<Val> vs, List<Slot> va, int free) {
+			this.vs = vs;
+			this.va = va;
+			this.free = free;
+		}
+	}
+
+	/**
+	 * a word being emitted, at the top of the method or inlined
+	 */
+	private final class Frame {
+
+		final Jit.Word w;
+		final Frame parent;
+
+		/**
+		 * number of address stack entries below this word's own
+		 */
+		final int base;
+
+		/**
+		 * the address stack below this word's own entries where control flow
+		 * joins: return addresses of enclosing inlined calls, the rest flushed
+		 */
+		final List<Slot> outer = new ArrayList<Slot>();
+
+		final Map<Integer, Integer> labels = new HashMap<Integer, Integer>();
+		final Map<Integer, State> carried = new HashMap<Integer, State>();
+
+		int cont;
+		State returned;
+
+		Frame(Jit.Word w, Frame parent, int base) {
+			this.w = w;
+			this.parent = parent;
+			this.base = base;
+			for (Slot s : va) {
+				outer.add(s.ret ? s : UNKNOWN);
+			}
+		}
+
+		int nesting() {
+			return parent == null ? 0 : 1 + parent.nesting();
+		}
+
+		boolean within(Jit.Word u) {
+			return w == u || parent != null && parent.within(u);
+		}
+	}
+
+	/**
+	 * out of line code that writes the address stack entries the interpreter
+	 * needs and then either bails at cell or, after a call that bailed, just
+	 * returns
+	 */
+	private static final class Stub {
+		final int label;
+		final boolean bail;
+		final int cell;
+		final int[] offsets;
+		final Val[] vals;
+
+		Stub(int label, boolean bail, int cell, int[] offsets, Val[] vals) {
+			this.label = label;
+			this.bail = bail;
+			this.cell = cell;
+			this.offsets = offsets;
+			this.vals = vals;
+		}
+	}
+
+	static byte[] assemble(Jit jit, Map<Integer, Jit.Word> words) {
+		ClassAssembler ca = new ClassAssembler(CLASS, "java/lang/Object", "com/xoba/ngaro/Jit$ICompiled");
+
+		ClassAssembler.Code init = ca.method(ACC_PUBLIC, "<init>", "()V", "L" + CLASS + ";");
+		init.aload(0);
+		init.ref(INVOKESPECIAL, ca.methodRef("java/lang/Object", "<init>", "()V"));
+		init.op(RETURN);
+		init.end();
+
+		for (Jit.Word w : words.values()) {
+			int budget = MAX_TOTAL;
+			while (!new JitEmitter(jit, ca, words, w, budget).emit()) {
+				budget /= 2;
+			}
+		}
+
+		ClassAssembler.Code run = ca.method(ACC_PUBLIC, "run", "(" + STATE_DESC + "III)I", "L" + CLASS + ";",
+				STATE_DESC, "I", "I", "I");
+		int n = words.size();
+		int[] keys = new int[n];
+		int[] targets = new int[n];
+		int i = 0;
+		for (int e : new TreeSet<Integer>(words.keySet())) {
+			keys[i] = e;
+			targets[i] = run.newLabel();
+			i++;
+		}
+		int dflt = run.newLabel();
+		run.iload(2);
+		run.lookupswitch(dflt, keys, targets);
+		for (i = 0; i < n; i++) {
+			run.mark(targets[i]);
+			run.aload(1);
+			run.iload(3);
+			run.iload(4);
+			run.ref(INVOKESTATIC, ca.methodRef(CLASS, "w" + keys[i], WORD_DESC));
+			run.op(IRETURN);
+		}
+		run.mark(dflt);
+		run.aload(1);
+		run.iload(2);
+		run.push(1);
+		run.op(ISUB);
+		run.iload(3);
+		run.iload(4);
+		run.ref(INVOKEVIRTUAL, ca.methodRef(STATE, "bail", "(III)I"));
+		run.op(IRETURN);
+		run.end();
+
+		return ca.toByteArray();
+	}
+
+	private final Jit jit;
+	private final int[] m;
+	private final ClassAssembler ca;
+	private final Map<Integer, Jit.Word> words;
+	private final Jit.Word top;
+	private final int budget;
+
+	private ClassAssembler.Code c;
+
+	private List<Val> vs = new ArrayList<Val>();
+	private List<Slot> va = new ArrayList<Slot>();
+	private int free = FIRST;
+
+	/**
+	 * whether the code emitted last falls through into the next cell in order
+	 */
+	private boolean falls;
+
+	private int total;
+
+	private final List<Stub> stubs = new ArrayList<Stub>();
+
+	private JitEmitter(Jit jit, ClassAssembler ca, Map<Integer, Jit.Word> words, Jit.Word top, int budget) {
+		this.jit = jit;
+		this.m = jit.m;
+		this.ca = ca;
+		this.words = words;
+		this.top = top;
+		this.budget = budget;
+	}
+
+	/**
+	 * false if the method came out too large, and nothing was added
+	 */
+	private boolean emit() {
+		String[] locals = new String[LIMIT];
+		locals[ST] = STATE_DESC;
+		locals[SP] = "I";
+		locals[RP] = "I";
+		locals[M] = "[I";
+		locals[S] = "[I";
+		locals[A] = "[I";
+		for (int i = N; i < LIMIT; i++) {
+			locals[i] = "I";
+		}
+		c = ca.method(ACC_STATIC, "w" + top.entry, WORD_DESC, locals);
+
+		// everything in the frame has to be set before the first label
+
+		c.aload(ST);
+		c.ref(GETFIELD, ca.fieldRef(STATE, "m", "[I"));
+		c.astore(M);
+		c.aload(ST);
+		c.ref(GETFIELD, ca.fieldRef(STATE, "s", "[I"));
+		c.astore(S);
+		c.aload(ST);
+		c.ref(GETFIELD, ca.fieldRef(STATE, "a", "[I"));
+		c.astore(A);
+		for (int i = N; i < LIMIT; i++) {
+			c.op(ICONST_0);
+			c.istore(i);
+		}
+
+		total = top.size();
+		body(new Frame(top, null, 0));
+
+		for (Stub s : stubs) {
+			c.mark(s.label);
+			for (int i = 0; i < s.offsets.length; i++) {
+				c.aload(A);
+				c.iload(RP);
+				if (s.offsets[i] != 0) {
+					c.push(s.offsets[i]);
+					c.op(IADD);
+				}
+				load(s.vals[i]);
+				c.op(IASTORE);
+			}
+			spend();
+			if (s.bail) {
+				c.aload(ST);
+				c.push(s.cell - 1);
+				c.iload(SP);
+				c.iload(RP);
+				c.ref(INVOKEVIRTUAL, ca.methodRef(STATE, "bail", "(III)I"));
+			} else {
+				c.iload(SP);
+			}
+			c.op(IRETURN);
+		}
+
+		if (c.size() > 8000 && budget > top.size()) {
+			return false;
+		}
+		c.end();
+		return true;
+	}
+
+	private void body(Frame f) {
+		final Jit.Word w = f.w;
+		for (int x = w.cells.nextSetBit(0); x >= 0; x = w.cells.nextSetBit(x + 1)) {
+			f.labels.put(x, c.newLabel());
+		}
+		falls = false;
+		go(f, -1, w.entry, true);
+		for (int x = w.cells.nextSetBit(0); x >= 0; x = w.cells.nextSetBit(x + 1)) {
+			final boolean fell = falls;
+			falls = false;
+			c.mark(f.labels.get(x));
+			if (w.single.containsKey(x)) {
+				if (!fell) {
+					State s = f.carried.get(x);
+					if (s != null) {
+						restore(s);
+					} else {
+						// nothing gets here
+						canonical(f, w.depth.get(x));
+					}
+				}
+			} else {
+				canonical(f, w.depth.get(x));
+			}
+			if (free > LIMIT - 16) {
+				spill();
+			}
+			c.iinc(N, 1);
+			cell(f, x);
+		}
+	}
+
+	private void cell(Frame f, final int at) {
+		final int op = m[at];
+		switch (op) {
+		case VM_NOP:
+			break;
+		case VM_LIT:
+			vs.add(constant(m[at + 1]));
+			go(f, at, at + 2, true);
+			return;
+		case VM_DUP: {
+			Val v = pull();
+			vs.add(v);
+			vs.add(v);
+			break;
+		}
+		case VM_DROP:
+			if (vs.isEmpty()) {
+				c.iinc(SP, -1);
+			} else {
+				vs.remove(vs.size() - 1);
+			}
+			break;
+		case VM_SWAP: {
+			Val y = pull();
+			Val x = pull();
+			vs.add(y);
+			vs.add(x);
+			break;
+		}
+		case VM_PUSH:
+			va.add(new Slot(pull(), false, false));
+			c.iinc(RP, 1);
+			break;
+		case VM_POP: {
+			Slot s = va.remove(va.size() - 1);
+			if (s.val != null) {
+				vs.add(s.val);
+			} else {
+				Val t = fresh();
+				c.aload(A);
+				c.iload(RP);
+				c.op(IALOAD);
+				c.istore(t.v);
+				vs.add(t);
+			}
+			c.iinc(RP, -1);
+			break;
+		}
+		case VM_LOOP: {
+			final int target = f.w.target(m[at + 1]);
+			Val v = unary(pull(), ISUB, -1);
+			if (v.constant) {
+				if (v.v > 0) {
+					vs.add(v);
+					go(f, at, target, true);
+				} else {
+					go(f, at, at + 2, true);
+				}
+				return;
+			}
+			vs.add(v);
+			State before = snapshot();
+			int skip = c.newLabel();
+			load(v);
+			c.jump(IFLE, skip);
+			go(f, at, target, false);
+			c.mark(skip);
+			restore(before);
+			vs.remove(vs.size() - 1);
+			go(f, at, at + 2, true);
+			return;
+		}
+		case VM_JUMP:
+			go(f, at, f.w.target(m[at + 1]), true);
+			return;
+		case VM_RETURN:
+			leave(f, at, true);
+			return;
+		case VM_LT_JUMP:
+		case VM_GT_JUMP:
+		case VM_NE_JUMP:
+		case VM_EQ_JUMP: {
+			final int target = f.w.target(m[at + 1]);
+			Val y = pull();
+			Val x = pull();
+			if (x.constant && y.constant) {
+				go(f, at, taken(op, y.v, x.v) ? target : at + 2, true);
+				return;
+			}
+			State before = snapshot();
+			int skip = c.newLabel();
+			load(y);
+			load(x);
+			c.jump(inverse(op), skip);
+			go(f, at, target, false);
+			c.mark(skip);
+			restore(before);
+			go(f, at, at + 2, true);
+			return;
+		}
+		case VM_FETCH: {
+			Val a = pull();
+			Val t = fresh();
+			c.aload(M);
+			load(a);
+			c.op(IALOAD);
+			c.istore(t.v);
+			vs.add(t);
+			break;
+		}
+		case VM_STORE: {
+			Val a = pull();
+			Val v = pull();
+			flushData();
+			c.aload(ST);
+			load(a);
+			load(v);
+			c.ref(INVOKEVIRTUAL, ca.methodRef(STATE, "store", "(II)Z"));
+			c.jump(IFNE, stub(true, at + 1, -1));
+			break;
+		}
+		case VM_ADD:
+			binary(IADD);
+			break;
+		case VM_SUB:
+			binary(ISUB);
+			break;
+		case VM_MUL:
+			binary(IMUL);
+			break;
+		case VM_DIVMOD: {
+			Val y = pull();
+			Val x = pull();
+			if (x.constant && y.constant && y.v != 0) {
+				vs.add(constant(x.v % y.v));
+				vs.add(constant(x.v / y.v));
+			} else {
+				Val r = fresh();
+				Val q = fresh();
+				load(x);
+				load(y);
+				c.op(IREM);
+				c.istore(r.v);
+				load(x);
+				load(y);
+				c.op(IDIV);
+				c.istore(q.v);
+				vs.add(r);
+				vs.add(q);
+			}
+			break;
+		}
+		case VM_AND:
+			binary(IAND);
+			break;
+		case VM_OR:
+			binary(IOR);
+			break;
+		case VM_XOR:
+			binary(IXOR);
+			break;
+		case VM_SHL:
+			binary(ISHL);
+			break;
+		case VM_SHR:
+			binary(ISHR);
+			break;
+		case VM_ZERO_EXIT: {
+			Val v = pull();
+			if (v.constant) {
+				if (v.v == 0) {
+					leave(f, at, true);
+				} else {
+					vs.add(v);
+					go(f, at, at + 1, true);
+				}
+				return;
+			}
+			State before = snapshot();
+			int nonzero = c.newLabel();
+			load(v);
+			c.jump(IFNE, nonzero);
+			leave(f, at, false);
+			c.mark(nonzero);
+			restore(before);
+			vs.add(v);
+			go(f, at, at + 1, true);
+			return;
+		}
+		case VM_INC:
+			vs.add(unary(pull(), IADD, 1));
+			break;
+		case VM_DEC:
+			vs.add(unary(pull(), ISUB, -1));
+			break;
+		case VM_IN:
+		case VM_OUT:
+		case VM_WAIT:
+			exit(at);
+			return;
+		default: {
+			if (f.w.tail.get(at)) {
+				go(f, at, f.w.entry, true);
+				return;
+			}
+			final int e = f.w.target(op);
+			if (jit.isQuote(e)) {
+				vs.add(constant(at + 2));
+				go(f, at, f.w.target(m[at + 1]), true);
+				return;
+			}
+			if (jit.isDo(e)) {
+				run(f, at);
+			} else {
+				call(f, at, e);
+			}
+		}
+		}
+		go(f, at, at + 1, true);
+	}
+
+	/**
+	 * do at cell at, with the quote on the data stack
+	 */
+	private void run(Frame f, int at) {
+		Val v = pull();
+		while (v.constant) {
+			final int e = top.target(v.v);
+			if (!jit.isDo(e)) {
+				call(f, at, e);
+				return;
+			}
+			top.watch.set(e, e + 3);
+			v = pull();
+		}
+		Val t = fresh();
+		load(v);
+		c.push(1);
+		c.op(ISUB);
+		c.istore(t.v);
+		dynamic(at, t);
+	}
+
+	private void call(Frame f, int at, int e) {
+		final Jit.Word u = words.get(e);
+		if (u == null) {
+			dynamic(at, constant(e - 1));
+		} else if (u.size() <= MAX_INLINE && total + u.size() <= budget && f.nesting() < MAX_NESTING && !f.within(u)) {
+			inline(f, at, u);
+		} else {
+			flushData();
+			c.aload(ST);
+			c.iload(SP);
+			c.iload(RP);
+			c.push(1);
+			c.op(IADD);
+			c.ref(INVOKESTATIC, ca.methodRef(CLASS, "w" + e, WORD_DESC));
+			returned(at);
+		}
+	}
+
+	private void dynamic(int at, Val v) {
+		flushData();
+		c.aload(ST);
+		load(v);
+		c.iload(SP);
+		c.iload(RP);
+		c.push(1);
+		c.op(IADD);
+		c.ref(INVOKEVIRTUAL, ca.methodRef(STATE, "call", "(III)I"));
+		returned(at);
+	}
+
+	/**
+	 * after a call from cell at: if it bailed, the interpreter has to find our
+	 * part of the address stack, return address included
+	 */
+	private void returned(int at) {
+		c.istore(SP);
+		c.iload(SP);
+		c.jump(IFLT, stub(false, 0, at));
+	}
+
+	private void inline(Frame f, int at, Jit.Word u) {
+		total += u.size();
+		va.add(new Slot(constant(at), false, true));
+		c.iinc(RP, 1);
+		final Frame g = new Frame(u, f, va.size());
+		g.cont = c.newLabel();
+		body(g);
+		final boolean fell = falls;
+		falls = false;
+		c.mark(g.cont);
+		if (u.returns == 1) {
+			if (!fell) {
+				if (g.returned != null) {
+					restore(g.returned);
+				} else {
+					canonical(g.parent, g.base - 1 - g.parent.base);
+				}
+			}
+		} else {
+			canonical(g.parent, g.base - 1 - g.parent.base);
+		}
+	}
+
+	/**
+	 * VM_RETURN, or VM_ZERO_EXIT taken, at cell at; may fall into what follows
+	 * if fall is set
+	 */
+	private void leave(Frame f, int at, boolean fall) {
+		if (f.parent == null) {
+			flushData();
+			spend();
+			c.iload(SP);
+			c.op(IRETURN);
+			return;
+		}
+		va.remove(va.size() - 1);
+		c.iinc(RP, -1);
+		if (f.w.returns > 1) {
+			flush();
+		} else {
+			f.returned = snapshot();
+		}
+		if (fall && f.w.cells.nextSetBit(at + 1) < 0) {
+			falls = true;
+		} else {
+			c.jump(GOTO, f.cont);
+		}
+	}
+
+	/**
+	 * control passing from cell from to cell x
+	 */
+	private void go(Frame f, int from, int x, boolean fall) {
+		final Jit.Word w = f.w;
+		if (!w.cells.get(x)) {
+			exit(x);
+			return;
+		}
+		if (x <= from) {
+			check(x);
+		}
+		final boolean adjacent = fall && x == w.cells.nextSetBit(from + 1);
+		if (w.single.containsKey(x)) {
+			if (!adjacent) {
+				f.carried.put(x, snapshot());
+			}
+		} else {
+			flush();
+		}
+		if (adjacent) {
+			falls = true;
+		} else {
+			c.jump(GOTO, f.labels.get(x));
+		}
+	}
+
+	/**
+	 * on a jump back to cell x: once SPEND cells have been counted, spends
+	 * them, and hands over to the interpreter at x if that finds the budget
+	 * gone
+	 */
+	private void check(int x) {
+		final int skip = c.newLabel();
+		c.iload(N);
+		c.push(SPEND);
+		c.jump(IF_ICMPLT, skip);
+		c.aload(ST);
+		c.iload(N);
+		c.ref(INVOKEVIRTUAL, ca.methodRef(STATE, "spend", "(I)Z"));
+		c.op(ICONST_0);
+		c.istore(N);
+		c.jump(IFEQ, skip);
+		final State before = snapshot();
+		exit(x);
+		c.mark(skip);
+		restore(before);
+	}
+
+	/**
+	 * counts the cells run, on the way out
+	 */
+	private void spend() {
+		c.aload(ST);
+		c.iload(N);
+		c.ref(INVOKEVIRTUAL, ca.methodRef(STATE, "count", "(I)V"));
+	}
+
+	/**
+	 * hands over to the interpreter at cell x
+	 */
+	private void exit(int x) {
+		flushData();
+		c.jump(GOTO, stub(true, x, -1));
+	}
+
+	private int stub(boolean bail, int cell, int site) {
+		List<Integer> offsets = new ArrayList<Integer>();
+		List<Val> vals = new ArrayList<Val>();
+		for (int i = 0; i < va.size(); i++) {
+			Slot s = va.get(i);
+			if (!s.written) {
+				offsets.add(i + 1 - va.size());
+				vals.add(s.val);
+			}
+		}
+		if (site >= 0) {
+			offsets.add(1);
+			vals.add(constant(site));
+		}
+		int[] o = new int[offsets.size()];
+		for (int i = 0; i < o.length; i++) {
+			o[i] = offsets.get(i);
+		}
+		Stub s = new Stub(c.newLabel(), bail, cell, o, vals.toArray(new Val[vals.size()]));
+		stubs.add(s);
+		return s.label;
+	}
+
+	private static boolean taken(int op, int y, int x) {
+		switch (op) {
+		case VM_LT_JUMP:
+			return y < x;
+		case VM_GT_JUMP:
+			return y > x;
+		case VM_NE_JUMP:
+			return y != x;
+		default:
+			return y == x;
+		}
+	}
+
+	/**
+	 * the branch that skips a taken VM_*_JUMP, comparing y with x
+	 */
+	private static int inverse(int op) {
+		switch (op) {
+		case VM_LT_JUMP:
+			return IF_ICMPGE;
+		case VM_GT_JUMP:
+			return IF_ICMPLE;
+		case VM_NE_JUMP:
+			return IF_ICMPEQ;
+		default:
+			return IF_ICMPNE;
+		}
+	}
+
+	// the compile-time stacks
+
+	private static Val constant(int v) {
+		return new Val(true, v);
+	}
+
+	private Val fresh() {
+		return new Val(false, free++);
+	}
+
+	private void load(Val v) {
+		if (v.constant) {
+			c.push(v.v);
+		} else {
+			c.iload(v.v);
+		}
+	}
+
+	private Val pull() {
+		if (!vs.isEmpty()) {
+			return vs.remove(vs.size() - 1);
+		}
+		Val t = fresh();
+		c.aload(S);
+		c.iload(SP);
+		c.op(IALOAD);
+		c.istore(t.v);
+		c.iinc(SP, -1);
+		return t;
+	}
+
+	private Val unary(Val v, int opcode, int delta) {
+		if (v.constant) {
+			return constant(v.v + delta);
+		}
+		Val t = fresh();
+		load(v);
+		c.push(1);
+		c.op(opcode);
+		c.istore(t.v);
+		return t;
+	}
+
+	private void binary(int opcode) {
+		Val y = pull();
+		Val x = pull();
+		if (x.constant && y.constant) {
+			vs.add(constant(fold(opcode, x.v, y.v)));
+			return;
+		}
+		Val t = fresh();
+		load(x);
+		load(y);
+		c.op(opcode);
+		c.istore(t.v);
+		vs.add(t);
+	}
+
+	private static int fold(int opcode, int x, int y) {
+		switch (opcode) {
+		case IADD:
+			return x + y;
+		case ISUB:
+			return x - y;
+		case IMUL:
+			return x * y;
+		case IAND:
+			return x & y;
+		case IOR:
+			return x | y;
+		case IXOR:
+			return x ^ y;
+		case ISHL:
+			return x << y;
+		default:
+			return x >> y;
+		}
+	}
+
+	private void flushData() {
+		final int n = vs.size();
+		for (int i = 0; i < n; i++) {
+			c.aload(S);
+			c.iload(SP);
+			c.push(i + 1);
+			c.op(IADD);
+			load(vs.get(i));
+			c.op(IASTORE);
+		}
+		if (n > 0) {
+			c.iinc(SP, n);
+		}
+		vs.clear();
+	}
+
+	/**
+	 * writes out everything but the return addresses of inlined calls
+	 */
+	private void flush() {
+		flushData();
+		for (int i = 0; i < va.size(); i++) {
+			Slot s = va.get(i);
+			if (!s.written && !s.ret) {
+				write(i, s.val);
+				va.set(i, new Slot(s.val, true, false));
+			}
+		}
+	}
+
+	private void write(int i, Val v) {
+		final int offset = va.size() - 1 - i;
+		c.aload(A);
+		c.iload(RP);
+		if (offset != 0) {
+			c.push(offset);
+			c.op(ISUB);
+		}
+		load(v);
+		c.op(IASTORE);
+	}
+
+	/**
+	 * flushes, and forgets every local
+	 */
+	private void spill() {
+		flush();
+		for (int i = 0; i < va.size(); i++) {
+			if (!va.get(i).ret) {
+				va.set(i, UNKNOWN);
+			}
+		}
+		free = FIRST;
+	}
+
+	/**
+	 * the state where control flow joins, at the given depth of frame f's own
+	 * address stack entries: all flushed
+	 */
+	private void canonical(Frame f, int depth) {
+		List<Slot> n = new ArrayList<Slot>(f.outer);
+		for (int i = 0; i < depth; i++) {
+			n.add(UNKNOWN);
+		}
+		va = n;
+		vs = new ArrayList<Val>();
+		free = FIRST;
+	}
+
+	private State snapshot() {
+		return new State(new ArrayList<Val>(vs), new ArrayList<Slot>(va), free);
+	}
+
+	private void restore(State s) {
+		vs = new ArrayList<Val>(s.vs);
+		va = new ArrayList<Slot>(s.va);
+		free = Math.max(free, s.free);
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.xoba.ngaro;
+
+/**
+ * What compiled code sees of the vm: the arrays behind Memory and the two
+ * Stacks, and where to pick up after a bail.
+ *
+ * A compiled word is called with the data and address stack pointers, its
+ * return address already on the address stack, and returns the new data stack
+ * pointer; its address stack is balanced by construction. A negative result
+ * means it bailed: it stopped at something it does not handle, left sp and rp
+ * here, and the interpreter has to take over at next+1 with the stacks as they
+ * are, return addresses included. Compiled code counts the cells it runs in
+ * executed, and bails on a jump back once that reaches budget.
+ */
+final class JitState {
+
+	final Jit jit;
+
+	private final CodeCache cache;
+
+	final int[] m, s, a;
+
+	int sp, rp;
+
+	/**
+	 * set together with next when compiled code bails
+	 */
+	boolean bail;
+
+	int next;
+
+	/**
+	 * cells run by compiled code since FastInterpreter last took them, and
+	 * how many it may run before it has to hand over
+	 */
+	long executed, budget;
+
+	JitState(Jit jit, CodeCache cache, int[] m, int[] s, int[] a) {
+		this.jit = jit;
+		this.cache = cache;
+		this.m = m;
+		this.s = s;
+		this.a = a;
+	}
+
+	/**
+	 * continues at ip v+1, with the return address at a[rp]
+	 */
+	int call(int v, int sp, int rp) {
+		return jit.call(this, v, sp, rp);
+	}
+
+	/**
+	 * VM_STORE from compiled code; true if it wrote over compiled code
+	 */
+	boolean store(int addr, int value) {
+		m[addr] = value;
+		return cache.stored(addr);
+	}
+
+	void count(int n) {
+		executed += n;
+	}
+
+	/**
+	 * counts n more cells, returning true if that is the budget gone
+	 */
+	boolean spend(int n) {
+		executed += n;
+		return executed >= budget;
+	}
+
+	int bail(int v, int sp, int rp) {
+		this.sp = sp;
+		this.rp = rp;
+		this.next = v;
+		this.bail = true;
+		return -1;
+	}
+
+}
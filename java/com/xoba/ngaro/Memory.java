@@ -3,6 +3,8 @@ package com.xoba.ngaro;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 import com.xoba.ngaro.inf.IMemory;
@@ -13,13 +15,23 @@ public class Memory implements IMemory {
 	private final int[] memory;
 
 	public static IMemory load(File f, boolean littleEndian) throws IOException {
+		return load(f, littleEndian, 0);
+	}
+
+	/**
+	 * loads an image into a new memory of at least size cells, mapping the file
+	 * and copying it in with one bulk get
+	 */
+	public static Memory load(File f, boolean littleEndian, int size) throws IOException {
 		RandomAccessFile in = new RandomAccessFile(f, "r");
 		try {
-			int n = (int) (in.length() / 4);
-			IMemory mem = new Memory(n);
-			for (int i = 0; i < n; i++) {
-				int v = in.readInt();
-				mem.set(i, littleEndian ? Memory.switchEndian(v) : v);
+			FileChannel ch = in.getChannel();
+			int n = (int) (ch.size() / 4);
+			Memory mem = new Memory(Math.max(n, size));
+			if (n > 0) {
+				ch.map(FileChannel.MapMode.READ_ONLY, 0, 4L * n)
+						.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asIntBuffer()
+						.get(mem.memory, 0, n);
 			}
 			return mem;
 		} finally {
@@ -47,6 +59,10 @@ public class Memory implements IMemory {
 		return n;
 	}
 
+	int[] array() {
+		return memory;
+	}
+
 	@Override
 	public void clear() {
 		for (int i = 0; i < n; i++) {
@@ -0,0 +1,161 @@
+package com.xoba.ngaro;
+
+import java.util.Arrays;
+
+import com.xoba.ngaro.inf.IMemory;
+import com.xoba.ngaro.inf.IStack;
+
+/**
+ * Port 15: the kernel's copy, fill, compare and getLength over whole ranges of
+ * memory in one wait, where the kernel moves a cell for each time round an
+ * interpreted loop.
+ *
+ * Op 1 returns -1, where a vm without the device leaves the 1 in the port. Ops
+ * 2 to 5 take and return what copy ( aan- ), fill ( ann- ), compare ( $$-f )
+ * and getLength ( a-n ) do, with the same results: in particular copy moves
+ * cells first to last, so that copying a range onto itself one or more cells
+ * further on repeats its start along it, as the kernel's loop does.
+ *
+ * Ranges within a Memory are handled on its array; anything else, including
+ * ranges running off either end, a cell at a time, failing where the kernel
+ * would.
+ */
+final class MemoryDevice {
+
+	static final int PORT = 15;
+
+	private final NGaroVM vm;
+
+	MemoryDevice(NGaroVM vm) {
+		this.vm = vm;
+	}
+
+	/**
+	 * the result of an op
+	 */
+	int handle(int op) {
+		final IStack data = vm.data;
+		switch (op) {
+		case 1:
+			return -1;
+		case 2: {
+			int n = data.pop();
+			int to = data.pop();
+			copy(data.pop(), to, n);
+			return 0;
+		}
+		case 3: {
+			int n = data.pop();
+			int value = data.pop();
+			fill(data.pop(), value, n);
+			return 0;
+		}
+		case 4: {
+			int b = data.pop();
+			return compare(data.pop(), b) ? -1 : 0;
+		}
+		case 5:
+			return length(data.pop());
+		default:
+			return 0;
+		}
+	}
+
+	private int[] array(int a, int n) {
+		if (vm.memory instanceof Memory && a >= 0 && n <= vm.memory.size() - a) {
+			return ((Memory) vm.memory).array();
+		}
+		return null;
+	}
+
+	private void copy(int from, int to, int n) {
+		if (n <= 0) {
+			return;
+		}
+		final int[] m = array(from, n) != null ? array(to, n) : null;
+		if (m == null) {
+			final IMemory mem = vm.memory;
+			for (int i = 0; i < n; i++) {
+				mem.set(to + i, mem.get(from + i));
+			}
+		} else if (to <= from || to - from >= n) {
+			System.arraycopy(m, from, m, to, n);
+		} else {
+			// the cells between from and to, over and over; each copy doubles
+			// what there is to copy from
+			for (int i = 0; i < n;) {
+				int k = Math.min(n - i, to + i - from);
+				System.arraycopy(m, from, m, to + i, k);
+				i += k;
+			}
+		}
+		vm.written(to, n);
+	}
+
+	private void fill(int a, int value, int n) {
+		if (n <= 0) {
+			return;
+		}
+		final int[] m = array(a, n);
+		if (m == null) {
+			final IMemory mem = vm.memory;
+			for (int i = 0; i < n; i++) {
+				mem.set(a + i, value);
+			}
+		} else {
+			Arrays.fill(m, a, a + n, value);
+		}
+		vm.written(a, n);
+	}
+
+	private boolean compare(int a, int b) {
+		final int[] m = array(a, 1) != null ? array(b, 1) : null;
+		if (m != null) {
+			if (m[a] != m[b]) {
+				return false;
+			}
+			final int end = end(m, a);
+			if (end >= 0 && b + (end - a) < m.length) {
+				return Arrays.mismatch(m, a, end + 1, m, b, b + (end - a) + 1) < 0;
+			}
+		}
+		final IMemory mem = vm.memory;
+		for (int i = 0;; i++) {
+			int c = mem.get(a + i);
+			if (c != mem.get(b + i)) {
+				return false;
+			} else if (c == 0) {
+				return true;
+			}
+		}
+	}
+
+	private int length(int a) {
+		final int[] m = array(a, 1);
+		if (m != null) {
+			final int end = end(m, a);
+			if (end >= 0) {
+				return end - a;
+			}
+		}
+		final IMemory mem = vm.memory;
+		int i = a;
+		while (mem.get(i) != 0) {
+			i++;
+		}
+		return i - a;
+	}
+
+	/**
+	 * where the string at a ends, or -1 if it runs off the end of memory
+	 */
+	private static int end(int[] m, int a) {
+		for (int i = a; i < m.length; i++) {
+			if (m[i] == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
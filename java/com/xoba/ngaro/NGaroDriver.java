@@ -2,6 +2,7 @@ package com.xoba.ngaro;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -16,31 +17,129 @@ public class NGaroDriver {
 
 	private static final ISaveImageController SIC = new DatestampedImageController(new File("."));
 
+	/**
+	 * select with -Dngaro.engine=fast or -Dngaro.engine=jit
+	 */
+	private static final NGaroVM.Engine ENGINE = NGaroVM.Engine.valueOf(System.getProperty("ngaro.engine", "switch")
+			.toUpperCase());
+
+	/**
+	 * with -Dngaro.memory=direct, memory is a DirectMemory off the heap; with
+	 * -Dngaro.memory=paged, every vm is forked from one NGaroTemplate of
+	 * retroImage; with -Dngaro.memory=sparse, it is a PagedMemory that can grow
+	 * to -Dngaro.memory.limit cells. Only the SWITCH engine runs on these.
+	 */
+	private static final String MEMORY = System.getProperty("ngaro.memory", "heap");
+
+	private static final int LIMIT = Integer.getInteger("ngaro.memory.limit", Integer.MAX_VALUE);
+
+	private static NGaroTemplate template;
+
+	/**
+	 * with -Dngaro.stats=true, each run reports what fused sequences saved
+	 */
+	private static final boolean STATS = Boolean.getBoolean("ngaro.stats");
+
+	/**
+	 * console output goes through a buffer of -Dngaro.console.buffer bytes,
+	 * written at least every -Dngaro.console.interval ms and, with
+	 * -Dngaro.console.thread=true, on a thread of its own
+	 */
+	private static final ConsoleOutput CONSOLE = new ConsoleOutput(System.out, Integer.getInteger(
+			"ngaro.console.buffer", ConsoleOutput.DEFAULT_SIZE), Long.getLong("ngaro.console.interval",
+			ConsoleOutput.DEFAULT_INTERVAL), Boolean.getBoolean("ngaro.console.thread"));
+
+	/**
+	 * each test first loads the comma-separated libraries in -Dngaro.preload,
+	 * such as library/fastConsole.rx
+	 */
+	private static final String[] PRELOAD = System.getProperty("ngaro.preload", "").split(",");
+
+	/**
+	 * with -Dngaro.intrinsics=true or false, the kernel's combinators run
+	 * natively or as Ngaro code, rather than as the engine does by default
+	 */
+	private static final String INTRINSICS = System.getProperty("ngaro.intrinsics");
+
+	/**
+	 * with -Dngaro.profile=file, the tests run with a WordProfile, which is
+	 * printed to stderr at the end, and its collapsed stacks written to file
+	 */
+	private static final String PROFILE = System.getProperty("ngaro.profile");
+
+	private static WordProfile profile;
+
 	public static void main(String[] args) throws Exception {
 		if (false) {
 			IMemory mem = createMemory();
-			IReplIOManager rm = new ReplIOManager();
+			IReplIOManager rm = new ReplIOManager(CONSOLE);
 			IOManager im = new InputManager();
 			NGaroVM vm = new NGaroVM(128, 1024, mem, im, rm, SIC);
+			vm.setEngine(ENGINE);
+			if (INTRINSICS != null) {
+				vm.setIntrinsics(Boolean.parseBoolean(INTRINSICS));
+			}
+			vm.setEnvironment(System.getenv());
 			vm.run();
+			report("retroImage", vm);
 		} else {
 			runTests();
 		}
 	}
 
 	private static void runTests() throws Exception {
-		for (String f : new String[] { "files.rx", "base.rx", "core.rx", "vocabs.rx" }) {
-			IReplIOManager rm = new ReplIOManager();
+		if (PROFILE != null) {
+			profile = new WordProfile();
+		}
+		for (String f : new String[] { "files.rx", "base.rx", "core.rx", "vocabs.rx", "console.rx" }) {
+			IReplIOManager rm = new ReplIOManager(CONSOLE);
 			rm.includeFile("test/" + f);
+			for (int i = PRELOAD.length - 1; i >= 0; i--) {
+				if (PRELOAD[i].length() > 0) {
+					rm.includeFile(PRELOAD[i]);
+				}
+			}
 			IOManager im = new InputManager();
 			IMemory mem = createMemory();
 			NGaroVM vm = new NGaroVM(128, 1024, mem, im, rm, SIC);
+			vm.setEngine(ENGINE);
+			if (INTRINSICS != null) {
+				vm.setIntrinsics(Boolean.parseBoolean(INTRINSICS));
+			}
+			vm.setEnvironment(System.getenv());
+			vm.setWordProfile(profile);
 			vm.run();
+			report(f, vm);
 			System.out.println("********************************************************* DONE");
 		}
+		if (profile != null) {
+			profile.print(System.err, 40);
+			PrintStream out = new PrintStream(new File(PROFILE));
+			try {
+				profile.writeCollapsed(out);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private static void report(String name, NGaroVM vm) {
+		if (STATS) {
+			System.err.println(name + ": " + vm.getDispatchesEliminated() + " dispatches eliminated");
+		}
 	}
 
 	private static IMemory createMemory() throws IOException {
+		if (MEMORY.equals("direct")) {
+			return DirectMemory.load(new File("retroImage"), true, 1000000);
+		} else if (MEMORY.equals("paged")) {
+			if (template == null) {
+				template = NGaroTemplate.boot(new File("retroImage"), 1000000, null);
+			}
+			return template.fork();
+		} else if (MEMORY.equals("sparse")) {
+			return PagedMemory.load(new File("retroImage"), true, 1000000, LIMIT);
+		}
 		return NGaroVM.initializeMemory(new File("retroImage"), true, 1000000);
 	}
 
@@ -0,0 +1,223 @@
+package com.xoba.ngaro;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * The NGaroVMMXBean of a vm, registered with the platform MBean server while
+ * it runs, and the source of its SampleEvent and WaitEvents for Flight
+ * Recorder.
+ *
+ * Everything here is read from another thread than the vm's, without locking,
+ * so a value may be a moment old; none of it is written but by the vm.
+ */
+final class NGaroMonitor implements NGaroVMMXBean {
+
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	private static final Set<NGaroMonitor> running = new CopyOnWriteArraySet<NGaroMonitor>();
+
+	static {
+		try {
+			FlightRecorder.addPeriodicEvent(SampleEvent.class, new Runnable() {
+				@Override
+				public void run() {
+					for (NGaroMonitor m : running) {
+						m.sample();
+					}
+				}
+			});
+			FlightRecorder.addPeriodicEvent(WaitEvent.class, new Runnable() {
+				@Override
+				public void run() {
+					for (NGaroMonitor m : running) {
+						m.waits();
+					}
+				}
+			});
+		} catch (Throwable e) {
+			// a runtime without Flight Recorder still has the mbeans
+		}
+	}
+
+	private final NGaroVM vm;
+
+	private final String name;
+
+	private final long started = System.nanoTime();
+
+	private ObjectName objectName;
+
+	// the rate over the last interval, and where it ends
+
+	private long then = started, count;
+	private double rate = -1;
+
+	private final long[] waited = new long[16];
+
+	NGaroMonitor(NGaroVM vm) {
+		this.vm = vm;
+		this.name = "vm" + ids.incrementAndGet();
+	}
+
+	void start() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("com.xoba.ngaro:type=NGaroVM,name=" + name);
+			server.registerMBean(this, objectName);
+		} catch (Exception e) {
+			objectName = null;
+		}
+		running.add(this);
+	}
+
+	void stop() {
+		running.remove(this);
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				// gone already
+			}
+		}
+	}
+
+	private void sample() {
+		SampleEvent e = new SampleEvent();
+		e.vm = name;
+		e.engine = getEngine();
+		e.instructions = getInstructions();
+		e.instructionsPerSecond = getInstructionsPerSecond();
+		e.dataDepth = getDataDepth();
+		e.maxDataDepth = getMaxDataDepth();
+		e.addressDepth = getAddressDepth();
+		e.maxAddressDepth = getMaxAddressDepth();
+		e.here = getHere();
+		e.consoleRead = getConsoleBytesRead();
+		e.consoleWritten = getConsoleBytesWritten();
+		e.openFiles = getOpenFiles().size();
+		e.commit();
+	}
+
+	private synchronized void waits() {
+		for (int p = 0; p < waited.length; p++) {
+			final long n = vm.waits[p];
+			if (n > waited[p]) {
+				WaitEvent e = new WaitEvent();
+				e.vm = name;
+				e.port = p;
+				e.waits = n - waited[p];
+				e.total = n;
+				e.commit();
+				waited[p] = n;
+			}
+		}
+	}
+
+	@Override
+	public String getEngine() {
+		return vm.getEngine().toString();
+	}
+
+	@Override
+	public long getInstructions() {
+		return vm.instructions;
+	}
+
+	@Override
+	public synchronized double getInstructionsPerSecond() {
+		final long now = System.nanoTime();
+		final long n = vm.instructions;
+		if (now - then >= 1000000000L || rate < 0 && now > then) {
+			rate = 1e9 * (n - count) / (now - then);
+			then = now;
+			count = n;
+		}
+		return Math.max(rate, 0);
+	}
+
+	@Override
+	public long getUptimeMillis() {
+		return (System.nanoTime() - started) / 1000000;
+	}
+
+	@Override
+	public long[] getWaits() {
+		return vm.waits.clone();
+	}
+
+	@Override
+	public long getConsoleBytesRead() {
+		return vm.consoleIn;
+	}
+
+	@Override
+	public long getConsoleBytesWritten() {
+		return vm.consoleOut;
+	}
+
+	@Override
+	public int getDataDepth() {
+		return vm.data.getDepth();
+	}
+
+	@Override
+	public int getMaxDataDepth() {
+		return Math.max(vm.maxData, getDataDepth());
+	}
+
+	@Override
+	public int getAddressDepth() {
+		return vm.address.getDepth();
+	}
+
+	@Override
+	public int getMaxAddressDepth() {
+		return Math.max(vm.maxAddress, getAddressDepth());
+	}
+
+	@Override
+	public int getHere() {
+		return vm.memory.size() > 3 ? vm.memory.get(3) : 0;
+	}
+
+	private InputManager files() {
+		return vm.im instanceof InputManager ? (InputManager) vm.im : null;
+	}
+
+	@Override
+	public List<InputManager.FileStats> getOpenFiles() {
+		final InputManager f = files();
+		return f == null ? Collections.<InputManager.FileStats> emptyList()
+				: new ArrayList<InputManager.FileStats>(f.getFiles());
+	}
+
+	@Override
+	public long getFileOperations() {
+		final InputManager f = files();
+		return f == null ? 0 : f.getOperations();
+	}
+
+	@Override
+	public long getFileBytesRead() {
+		final InputManager f = files();
+		return f == null ? 0 : f.getBytesRead();
+	}
+
+	@Override
+	public long getFileBytesWritten() {
+		final InputManager f = files();
+		return f == null ? 0 : f.getBytesWritten();
+	}
+
+}
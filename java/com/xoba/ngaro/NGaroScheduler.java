@@ -0,0 +1,447 @@
+package com.xoba.ngaro;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.xoba.ngaro.inf.IAsyncReplIOManager;
+import com.xoba.ngaro.inf.INonBlockingReplIOManager;
+
+/**
+ * Runs many vms on a few threads, a slice of instructions at a time (see
+ * NGaroVM.run(long)).
+ *
+ * Each vm submitted becomes a Task, which runs one slice on the pool and then
+ * queues again behind the others. The queue is the scheduler's own: what goes
+ * to the pool, a ForkJoinPool, is only a turn for whichever task is at its
+ * head, since a worker runs the tasks it queued itself before any others. A vm
+ * WAITING for input is parked, holding no thread, until its console says the
+ * input is there if it is an IAsyncReplIOManager, or until wake() is called
+ * for it; a HALTED one completes its task. One held by Task.hold(), such as
+ * for output its client has not taken yet, is parked after its slice as well,
+ * until Task.release(). Task.cancel() stops a vm after its current slice, for
+ * scripts that would otherwise run forever, and so do a task's limits, if it
+ * is given any, once the vm goes over them.
+ *
+ * The scheduler counts slices, instructions, and the time each vm spends
+ * running and queued to run, from which it gives the throughput and Jain's
+ * fairness index of the share of its runnable time each live vm has been
+ * running: 1 when they all get the same share, down to 1/n when one vm gets
+ * it all.
+ */
+public final class NGaroScheduler {
+
+	public static final long DEFAULT_SLICE = 100000;
+
+	private static final int QUEUED = 0;
+	private static final int PARKED = 1;
+	private static final int DONE = 2;
+
+	/**
+	 * a vm on the scheduler
+	 */
+	public final class Task {
+
+		private final NGaroVM vm;
+
+		private final CompletableFuture<NGaroVM.Status> result = new CompletableFuture<NGaroVM.Status>();
+
+		private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+		private volatile boolean cancelled;
+
+		/**
+		 * whether hold() is in force, and whether the task is parked for it
+		 * rather than for input
+		 */
+		private volatile boolean held, holding;
+
+		private volatile long slices, instructions, running, queued;
+
+		private volatile long instructionLimit = Long.MAX_VALUE;
+		private volatile int pageLimit = Integer.MAX_VALUE;
+
+		/**
+		 * instructions since the vm last waited for input
+		 */
+		private long burst;
+
+		/**
+		 * when the task was last queued, and whether it still is
+		 */
+		private volatile long since;
+		private volatile boolean waiting;
+
+		private final Runnable wake = new Runnable() {
+			@Override
+			public void run() {
+				wake(Task.this);
+			}
+		};
+
+		private Task(NGaroVM vm) {
+			this.vm = vm;
+		}
+
+		public NGaroVM getVM() {
+			return vm;
+		}
+
+		/**
+		 * stops the vm after the slice it is running, if any; get() then throws
+		 * a CancellationException
+		 */
+		public void cancel() {
+			cancelled = true;
+			if (state.compareAndSet(PARKED, QUEUED)) {
+				queue();
+			}
+		}
+
+		/**
+		 * parks the vm after the slice it is running, if any, even if it could
+		 * go on, until release()
+		 */
+		public void hold() {
+			held = true;
+		}
+
+		/**
+		 * lets a vm held by hold() run again
+		 */
+		public void release() {
+			held = false;
+			if (holding && state.compareAndSet(PARKED, QUEUED)) {
+				queue();
+			}
+		}
+
+		/**
+		 * the most instructions the vm may run without waiting for input
+		 */
+		public void setInstructionLimit(long instructions) {
+			this.instructionLimit = instructions;
+		}
+
+		/**
+		 * the most pages of its own the vm may have, where its memory is a
+		 * PagedMemory
+		 */
+		public void setPageLimit(int pages) {
+			this.pageLimit = pages;
+		}
+
+		public boolean isDone() {
+			return result.isDone();
+		}
+
+		/**
+		 * runs r once the task is done, on the thread that finished it, or at
+		 * once if it is
+		 */
+		public void whenDone(final Runnable r) {
+			result.whenComplete(new BiConsumer<NGaroVM.Status, Throwable>() {
+				@Override
+				public void accept(NGaroVM.Status status, Throwable e) {
+					r.run();
+				}
+			});
+		}
+
+		/**
+		 * waits for the vm to halt
+		 */
+		public NGaroVM.Status get() throws InterruptedException, ExecutionException {
+			return result.get();
+		}
+
+		public long getSlices() {
+			return slices;
+		}
+
+		public long getInstructions() {
+			return instructions;
+		}
+
+		public long getRunningNanos() {
+			return running;
+		}
+
+		public long getQueuedNanos() {
+			return queued;
+		}
+
+		private void queue() {
+			since = System.nanoTime();
+			waiting = true;
+			runnable.add(this);
+			pool.execute(turn);
+		}
+
+		private void step() {
+			final long start = System.nanoTime();
+			final long wait = start - since;
+			queued += wait;
+			waiting = false;
+			holding = false;
+			if (cancelled) {
+				vm.halt();
+				finish(null, new CancellationException());
+				return;
+			}
+			final long before = vm.instructions;
+			NGaroVM.Status status;
+			try {
+				status = vm.run(slice);
+			} catch (Throwable e) {
+				ran(start, wait, before);
+				finish(null, e);
+				return;
+			}
+			ran(start, wait, before);
+			final String over = status == NGaroVM.Status.HALTED ? null : over();
+			if (over != null) {
+				vm.halt();
+				finish(null, new CancellationException(over));
+				return;
+			}
+			switch (status) {
+			case YIELDED:
+				if (held) {
+					holding = true;
+					state.set(PARKED);
+					// released between the vm looking and parking
+					if ((cancelled || !held) && state.compareAndSet(PARKED, QUEUED)) {
+						queue();
+					}
+				} else {
+					queue();
+				}
+				break;
+			case WAITING:
+				burst = 0;
+				state.set(PARKED);
+				if (vm.rm instanceof IAsyncReplIOManager) {
+					((IAsyncReplIOManager) vm.rm).whenReady(wake);
+				}
+				// input may have come between the vm looking and parking
+				if ((cancelled || ready(vm)) && state.compareAndSet(PARKED, QUEUED)) {
+					queue();
+				}
+				break;
+			case HALTED:
+				finish(status, null);
+				break;
+			}
+		}
+
+		private void ran(long start, long wait, long before) {
+			final long time = System.nanoTime() - start;
+			final long n = vm.instructions - before;
+			slices++;
+			running += time;
+			instructions += n;
+			burst += n;
+			counted(n, wait);
+		}
+
+		/**
+		 * which limit the vm is over, if any
+		 */
+		private String over() {
+			if (burst > instructionLimit) {
+				return "over " + instructionLimit + " instructions without waiting for input";
+			}
+			if (vm.memory instanceof PagedMemory && ((PagedMemory) vm.memory).getPrivatePages() > pageLimit) {
+				return "over " + pageLimit + " pages of memory";
+			}
+			return null;
+		}
+
+		private void finish(NGaroVM.Status status, Throwable e) {
+			state.set(DONE);
+			tasks.remove(this);
+			if (closing && tasks.isEmpty()) {
+				pool.shutdown();
+			}
+			if (e == null) {
+				result.complete(status);
+			} else {
+				result.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * the part of the time the vm could have been running that it was
+		 */
+		private double share(long now) {
+			final long t = running + queued + (waiting ? now - since : 0);
+			return t <= 0 ? 1 : (double) running / t;
+		}
+
+	}
+
+	private final ForkJoinPool pool;
+
+	private final boolean owned;
+
+	private volatile boolean closing;
+
+	private final long slice;
+
+	private final Set<Task> tasks = ConcurrentHashMap.newKeySet();
+
+	private final Queue<Task> runnable = new ConcurrentLinkedQueue<Task>();
+
+	private final Runnable turn = new Runnable() {
+		@Override
+		public void run() {
+			final Task t = runnable.poll();
+			if (t != null) {
+				t.step();
+			}
+		}
+	};
+
+	private final long created = System.nanoTime();
+
+	// totals, under the scheduler's lock
+
+	private long slices, instructions, maxQueued;
+
+	/**
+	 * a pool of its own with the given number of threads
+	 */
+	public NGaroScheduler(int threads, long slice) {
+		this(new ForkJoinPool(threads), slice, true);
+	}
+
+	/**
+	 * the given pool, which may run other work too
+	 */
+	public NGaroScheduler(ForkJoinPool pool, long slice) {
+		this(pool, slice, false);
+	}
+
+	private NGaroScheduler(ForkJoinPool pool, long slice, boolean owned) {
+		this.pool = pool;
+		this.slice = slice;
+		this.owned = owned;
+	}
+
+	/**
+	 * runs the vm from where it is, until it halts
+	 */
+	public Task submit(NGaroVM vm) {
+		Task t = new Task(vm);
+		tasks.add(t);
+		t.queue();
+		return t;
+	}
+
+	/**
+	 * input has come for the vm of a task, which runs again if it was waiting
+	 * for it
+	 */
+	public void wake(Task t) {
+		if (ready(t.vm) && t.state.compareAndSet(PARKED, QUEUED)) {
+			t.queue();
+		}
+	}
+
+	private static boolean ready(NGaroVM vm) {
+		return !(vm.rm instanceof INonBlockingReplIOManager) || ((INonBlockingReplIOManager) vm.rm).ready();
+	}
+
+	private synchronized void counted(long n, long wait) {
+		slices++;
+		instructions += n;
+		maxQueued = Math.max(maxQueued, wait);
+	}
+
+	/**
+	 * the tasks waiting for input, or held
+	 */
+	public int getParked() {
+		int n = 0;
+		for (Task t : tasks) {
+			if (t.state.get() == PARKED) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * the tasks not done yet
+	 */
+	public Set<Task> getTasks() {
+		return tasks;
+	}
+
+	public synchronized long getSlices() {
+		return slices;
+	}
+
+	public synchronized long getInstructions() {
+		return instructions;
+	}
+
+	/**
+	 * since the scheduler was made
+	 */
+	public double getInstructionsPerSecond() {
+		return 1e9 * getInstructions() / Math.max(1, System.nanoTime() - created);
+	}
+
+	/**
+	 * the longest a task has been queued before running a slice
+	 */
+	public synchronized long getMaxQueuedNanos() {
+		return maxQueued;
+	}
+
+	/**
+	 * Jain's index over the tasks queued or running
+	 */
+	public double getFairness() {
+		final long now = System.nanoTime();
+		double s = 0, q = 0;
+		int n = 0;
+		for (Task t : tasks) {
+			if (t.state.get() != QUEUED) {
+				continue;
+			}
+			final double x = t.share(now);
+			s += x;
+			q += x * x;
+			n++;
+		}
+		return q == 0 ? 1 : s * s / (n * q);
+	}
+
+	/**
+	 * stops the pool, if the scheduler made it, once its tasks are done
+	 */
+	public void shutdown() {
+		if (owned) {
+			closing = true;
+			if (tasks.isEmpty()) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return pool.awaitTermination(timeout, unit);
+	}
+
+}
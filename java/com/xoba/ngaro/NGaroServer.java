@@ -0,0 +1,501 @@
+package com.xoba.ngaro;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xoba.ngaro.inf.IOManager;
+
+/**
+ * Serves Retro sessions over TCP or a Unix domain socket, each a vm forked
+ * from one booted NGaroTemplate, with an AsyncConsole on its connection, and
+ * all of them on one NGaroScheduler.
+ *
+ * One thread accepts connections and reads from all of them through a
+ * Selector, offering what comes to each session's console; a session waiting
+ * for input holds no thread at all. Output is written to the connection by
+ * whichever thread runs the session, when the vm flushes its console after
+ * each slice; what the socket will not take then is queued, and written by
+ * the selector as the client reads it (see Output). When the client closes
+ * its end, the session gets what it sent, then bye, and then the end of its
+ * input.
+ *
+ * Each session may be limited in the instructions it runs between waits for
+ * input and in the pages of memory of its own (see NGaroScheduler.Task); it
+ * is told why when it is stopped, and its connection closed. Sessions have no
+ * files unless setFiles(true) is called, neither through port 4 nor include,
+ * and cannot save their image.
+ */
+public final class NGaroServer implements Closeable {
+
+	private final NGaroTemplate template;
+
+	private final NGaroScheduler scheduler;
+
+	private final ServerSocketChannel server;
+
+	private final Selector selector;
+
+	private long instructionLimit = Long.MAX_VALUE;
+
+	private int pageLimit = Integer.MAX_VALUE;
+
+	private boolean files;
+
+	private Map<String, String> environment = Collections.emptyMap();
+
+	private final AtomicInteger open = new AtomicInteger();
+
+	private final AtomicLong started = new AtomicLong();
+
+	private Thread thread;
+
+	private final ByteBuffer buf = ByteBuffer.allocate(8192);
+
+	/**
+	 * connections not accepted yet that the listening socket holds, enough for
+	 * many clients connecting at once
+	 */
+	private static final int BACKLOG = 1024;
+
+	/**
+	 * output a session may have queued for its client before it is held
+	 */
+	private static final int MAX_QUEUED = 1 << 16;
+
+	/**
+	 * listens on address, an InetSocketAddress or a UnixDomainSocketAddress
+	 */
+	public NGaroServer(NGaroTemplate template, NGaroScheduler scheduler, SocketAddress address) throws IOException {
+		this.template = template;
+		this.scheduler = scheduler;
+		this.server = address instanceof UnixDomainSocketAddress ? ServerSocketChannel
+				.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+		server.bind(address, BACKLOG);
+		server.configureBlocking(false);
+		this.selector = Selector.open();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * the most instructions a session may run without waiting for input
+	 */
+	public void setInstructionLimit(long instructions) {
+		this.instructionLimit = instructions;
+	}
+
+	/**
+	 * the most pages of memory of its own a session may have
+	 */
+	public void setPageLimit(int pages) {
+		this.pageLimit = pages;
+	}
+
+	/**
+	 * whether sessions get an InputManager, and so the server's files
+	 */
+	public void setFiles(boolean files) {
+		this.files = files;
+	}
+
+	/**
+	 * the variables getEnv finds in each session, which sees none of the
+	 * server's own
+	 */
+	public void setEnvironment(Map<String, String> environment) {
+		this.environment = environment;
+	}
+
+	public SocketAddress getAddress() throws IOException {
+		return server.getLocalAddress();
+	}
+
+	public int getOpenSessions() {
+		return open.get();
+	}
+
+	public long getSessionsStarted() {
+		return started.get();
+	}
+
+	public NGaroScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * accepts and reads on a thread of its own until closed
+	 */
+	public synchronized void start() {
+		thread = new Thread("ngaro-server") {
+			@Override
+			public void run() {
+				serve();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void serve() {
+		try {
+			while (selector.isOpen()) {
+				selector.select();
+				Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					SelectionKey k = i.next();
+					i.remove();
+					if (!k.isValid()) {
+						continue;
+					} else if (k.isAcceptable()) {
+						accept();
+						continue;
+					}
+					if (k.isWritable()) {
+						((Session) k.attachment()).output.drain();
+					}
+					if (k.isValid() && k.isReadable()) {
+						read(k);
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// closed
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void accept() throws IOException {
+		final SocketChannel ch = server.accept();
+		if (ch == null) {
+			return;
+		}
+		ch.configureBlocking(false);
+		final Session s = new Session(ch);
+		try {
+			s.start(ch.register(selector, SelectionKey.OP_READ, s));
+		} catch (IOException e) {
+			s.close();
+		}
+	}
+
+	private void read(SelectionKey k) {
+		final Session s = (Session) k.attachment();
+		buf.clear();
+		int n;
+		try {
+			n = s.ch.read(buf);
+		} catch (IOException e) {
+			n = -1;
+		}
+		if (n > 0) {
+			s.console.offer(buf.array(), 0, n);
+		} else if (n < 0) {
+			// still there for output
+			k.interestOps(k.interestOps() & ~SelectionKey.OP_READ);
+			s.console.offer("\nbye\n");
+			s.console.close();
+		}
+	}
+
+	/**
+	 * a connection and its vm
+	 */
+	private final class Session {
+
+		private final SocketChannel ch;
+
+		private final Output output;
+
+		private final AsyncConsole console;
+
+		Session(SocketChannel ch) {
+			this.ch = ch;
+			this.output = new Output(this);
+			this.console = new AsyncConsole(output);
+			console.setFiles(files);
+		}
+
+		void start(final SelectionKey key) throws IOException {
+			final IOManager im = files ? new InputManager() : NO_FILES;
+			final NGaroVM vm = template.fork(im, console, null);
+			vm.setEnvironment(new HashMap<String, String>(environment));
+			final NGaroScheduler.Task t = scheduler.submit(vm);
+			t.setInstructionLimit(instructionLimit);
+			t.setPageLimit(pageLimit);
+			output.start(key, t);
+			open.incrementAndGet();
+			started.incrementAndGet();
+			t.whenDone(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						t.get();
+					} catch (CancellationException e) {
+						tell("\nsession stopped: " + e.getMessage() + "\n");
+					} catch (ExecutionException e) {
+						tell("\nsession failed: " + e.getCause() + "\n");
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					output.finish();
+					open.decrementAndGet();
+				}
+			});
+		}
+
+		private void tell(String message) {
+			try {
+				for (byte b : message.getBytes(StandardCharsets.UTF_8)) {
+					console.write(b);
+				}
+				console.flush();
+			} catch (RuntimeException e) {
+				// the client has gone
+			}
+		}
+
+		void close() {
+			try {
+				ch.close();
+			} catch (IOException e) {
+				// gone already
+			}
+		}
+	}
+
+	/**
+	 * writes to a connection in non-blocking mode, which it shares with the
+	 * selector: what the socket will not take at once is queued, and the
+	 * selector writes it when the socket has room. While more than MAX_QUEUED
+	 * bytes are queued the session's task is held, so a client that does not
+	 * read holds neither a thread nor more than a slice's output beyond that;
+	 * once the session is done, the connection is closed when all is written.
+	 */
+	private final class Output extends OutputStream {
+
+		private final Session session;
+
+		private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+
+		private int queued;
+
+		private SelectionKey key;
+
+		private NGaroScheduler.Task task;
+
+		private boolean done;
+
+		Output(Session session) {
+			this.session = session;
+		}
+
+		synchronized void start(SelectionKey key, NGaroScheduler.Task task) {
+			this.key = key;
+			this.task = task;
+			if (!queue.isEmpty()) {
+				interest(SelectionKey.OP_WRITE);
+			}
+			if (queued > MAX_QUEUED) {
+				task.hold();
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			final ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+			if (queue.isEmpty()) {
+				session.ch.write(bb);
+				if (!bb.hasRemaining()) {
+					return;
+				}
+				if (key != null) {
+					interest(SelectionKey.OP_WRITE);
+				}
+			}
+			final ByteBuffer rest = ByteBuffer.allocate(bb.remaining());
+			rest.put(bb).flip();
+			queue.addLast(rest);
+			queued += rest.remaining();
+			if (queued > MAX_QUEUED && task != null) {
+				task.hold();
+			}
+		}
+
+		/**
+		 * on the selector's thread, when the socket has room
+		 */
+		synchronized void drain() {
+			try {
+				while (!queue.isEmpty()) {
+					final ByteBuffer bb = queue.peekFirst();
+					queued -= session.ch.write(bb);
+					if (bb.hasRemaining()) {
+						return;
+					}
+					queue.removeFirst();
+				}
+			} catch (IOException e) {
+				// the client has gone, which the session finds at its next write
+				queue.clear();
+				queued = 0;
+			}
+			if (done) {
+				disconnect();
+				return;
+			}
+			interest(0);
+			task.release();
+		}
+
+		/**
+		 * closes the connection, once everything queued is written
+		 */
+		synchronized void finish() {
+			done = true;
+			if (queue.isEmpty()) {
+				disconnect();
+			}
+		}
+
+		private void disconnect() {
+			key.cancel();
+			session.close();
+		}
+
+		/**
+		 * whether the selector is to tell when the socket has room
+		 */
+		private void interest(int write) {
+			try {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE | write);
+			} catch (CancelledKeyException e) {
+				return;
+			}
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * fails every file operation, as a vm does where a file cannot be opened
+	 * or a handle is not open; the block operations are left out, as
+	 * IOManager has them by default
+	 */
+	private static final IOManager NO_FILES = new IOManager() {
+
+		@Override
+		public int rxOpenFile(int mode, String name) {
+			return 0;
+		}
+
+		@Override
+		public int rxReadFile(int handle) {
+			return 0;
+		}
+
+		@Override
+		public int rxWriteFile(int handle, int c) {
+			return 0;
+		}
+
+		@Override
+		public int rxCloseFile(int handle) {
+			return 0;
+		}
+
+		@Override
+		public int rxGetFilePosition(int handle) {
+			return -1;
+		}
+
+		@Override
+		public int rxSetFilePosition(int handle, int pos) {
+			return -1;
+		}
+
+		@Override
+		public int rxGetFileSize(int handle) {
+			return -1;
+		}
+
+		@Override
+		public int rxDeleteFile(String name) {
+			return 0;
+		}
+	};
+
+	@Override
+	public void close() throws IOException {
+		final SocketAddress address = server.getLocalAddress();
+		selector.close();
+		server.close();
+		if (address instanceof UnixDomainSocketAddress) {
+			Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+		}
+	}
+
+	/**
+	 * serves sessions of -Dngaro.server.image (retroImage) in
+	 * -Dngaro.server.cells cells, on -Dngaro.server.unix if that names a socket
+	 * file, or else on TCP port -Dngaro.server.port (4000) of
+	 * -Dngaro.server.host (the loopback address); runs them on
+	 * -Dngaro.server.threads threads -Dngaro.server.slice instructions at a
+	 * time, and limits each to -Dngaro.server.instructions between waits for
+	 * input and -Dngaro.server.pages of memory. With -Dngaro.server.files=true
+	 * sessions may use the server's files.
+	 */
+	public static void main(String[] args) throws Exception {
+		final String image = System.getProperty("ngaro.server.image", "retroImage");
+		final int cells = Integer.getInteger("ngaro.server.cells", 1000000);
+		final String unix = System.getProperty("ngaro.server.unix");
+		final String host = System.getProperty("ngaro.server.host");
+		final int port = Integer.getInteger("ngaro.server.port", 4000);
+		final int threads = Integer.getInteger("ngaro.server.threads", Runtime.getRuntime().availableProcessors());
+		final long slice = Long.getLong("ngaro.server.slice", NGaroScheduler.DEFAULT_SLICE);
+
+		final SocketAddress address = unix != null ? UnixDomainSocketAddress.of(unix) : new InetSocketAddress(
+				host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host), port);
+		NGaroServer s = new NGaroServer(NGaroTemplate.boot(new File(image), cells, null), new NGaroScheduler(
+				threads, slice), address);
+		s.setInstructionLimit(Long.getLong("ngaro.server.instructions", Long.MAX_VALUE));
+		s.setPageLimit(Integer.getInteger("ngaro.server.pages", Integer.MAX_VALUE));
+		s.setFiles(Boolean.getBoolean("ngaro.server.files"));
+		s.start();
+		System.err.println("serving " + image + " on " + s.getAddress());
+		while (true) {
+			Thread.sleep(60000);
+			System.err.printf("%d sessions open, %d started, %.1f M instructions/s%n", s.getOpenSessions(),
+					s.getSessionsStarted(), s.getScheduler().getInstructionsPerSecond() / 1e6);
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.xoba.ngaro;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.xoba.ngaro.NGaroVM.ISaveImageController;
+import com.xoba.ngaro.inf.IMemory;
+import com.xoba.ngaro.inf.IOManager;
+import com.xoba.ngaro.inf.IReplIOManager;
+
+/**
+ * A booted image to start vms from without loading it again: its memory is
+ * frozen, and each fork gets a PagedMemory that shares its pages, copying only
+ * those it writes to.
+ *
+ * Forked vms start from ip 0 like any other, on the memory as the template left
+ * it, and are independent of each other. They run on the SWITCH engine, since
+ * the others need the array behind Memory.
+ */
+public class NGaroTemplate {
+
+	private final PagedMemory memory;
+
+	/**
+	 * a template of the current contents of m, which is copied unless it is a
+	 * PagedMemory, and then frozen
+	 */
+	public NGaroTemplate(IMemory m) {
+		this.memory = (m instanceof PagedMemory ? (PagedMemory) m : PagedMemory.copyOf(m)).freeze();
+	}
+
+	/**
+	 * loads an image into size cells and, if console is given, first runs it
+	 * with that console until it exits, for instance after including some
+	 * files that end with bye
+	 */
+	public static NGaroTemplate boot(File image, int size, IReplIOManager console) throws IOException {
+		PagedMemory m = PagedMemory.load(image, true, size);
+		if (console != null) {
+			new NGaroVM(128, 1024, m, new InputManager(), console, null).run();
+		}
+		return new NGaroTemplate(m);
+	}
+
+	/**
+	 * private copy-on-write memory for one vm
+	 */
+	public PagedMemory fork() {
+		return memory.fork();
+	}
+
+	public NGaroVM fork(IOManager im, IReplIOManager rm, ISaveImageController sic) throws IOException {
+		return new NGaroVM(128, 1024, fork(), im, rm, sic);
+	}
+
+	/**
+	 * puts a vm forked from this template back as it was forked, memory and
+	 * all, for a pool of vms to use again
+	 */
+	public void reset(NGaroVM vm) {
+		vm.reset();
+		((PagedMemory) vm.memory).restore(memory);
+	}
+
+	public int size() {
+		return memory.size();
+	}
+
+}
@@ -3,23 +3,26 @@ package com.xoba.ngaro;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
 
 import com.xoba.ngaro.inf.IMemory;
+import com.xoba.ngaro.inf.INonBlockingReplIOManager;
 import com.xoba.ngaro.inf.IOManager;
 import com.xoba.ngaro.inf.IReplIOManager;
 import com.xoba.ngaro.inf.IStack;
 
 public class NGaroVM {
 
-	private int ip;
-	private final IMemory memory;
+	int ip;
+	final IMemory memory;
 
-	private final IMemory ports = new Memory(12);
+	final IMemory ports = new Memory(16);
 
-	private final IStack data, address;
+	final IStack data, address;
 
-	private final IOManager im;
-	private final IReplIOManager rm;
+	final IOManager im;
+	final IReplIOManager rm;
 
 	public static interface ISaveImageController {
 		public File getSavedImageFile();
@@ -27,6 +30,105 @@ public class NGaroVM {
 
 	private final ISaveImageController sic;
 
+	/**
+	 * SWITCH runs every opcode through process() and the IMemory/IStack
+	 * interfaces; FAST runs the same opcode set in FastInterpreter, directly on
+	 * the arrays behind Memory and Stack. JIT is FAST plus compilation of hot
+	 * words to JVM bytecode.
+	 */
+	public static enum Engine {
+		SWITCH, FAST, JIT
+	}
+
+	private Engine engine = Engine.SWITCH;
+
+	/**
+	 * how a call of run(long) left the vm
+	 */
+	public static enum Status {
+		/**
+		 * it ran its budget, and the next call carries on from there
+		 */
+		YIELDED,
+		/**
+		 * it is at a wait for console input that has not arrived, which the
+		 * next call tries again
+		 */
+		WAITING,
+		/**
+		 * the ip left memory, by the end of the image or bye; the next call
+		 * starts again from cell 0
+		 */
+		HALTED
+	}
+
+	private FastInterpreter fast;
+
+	private OpcodeProfile profile;
+
+	private WordProfile words;
+
+	private ConsoleDevice console;
+
+	private DictionaryDevice dictionary;
+
+	private MemoryDevice bulk;
+
+	/**
+	 * set by setIntrinsics(), or null for the engine's default
+	 */
+	private Boolean intrinsic;
+
+	/**
+	 * what getEnv (port 5 query -10) finds; nothing unless set
+	 */
+	private Map<String, String> environment = Collections.emptyMap();
+
+	private boolean monitored = Boolean.getBoolean("ngaro.monitor");
+
+	private NGaroMonitor monitor;
+
+	/**
+	 * whether calls of run(long) are part way through the image
+	 */
+	private boolean started;
+
+	/**
+	 * whether a wait for input that is not ready stops the vm, as it does in
+	 * run(long) with an INonBlockingReplIOManager
+	 */
+	private boolean yielding;
+
+	/**
+	 * whether the vm stopped at a wait for input that is not ready
+	 */
+	boolean waiting;
+
+	/**
+	 * the port of the request it stopped on
+	 */
+	private int pending;
+
+	/**
+	 * instructions run so far, by every engine; compiled code counts the cells
+	 * it runs
+	 */
+	long instructions;
+
+	/**
+	 * waits that found a request on each port
+	 */
+	final long[] waits = new long[16];
+
+	long consoleIn, consoleOut;
+
+	/**
+	 * the deepest each stack has been seen at a wait
+	 */
+	int maxData, maxAddress;
+
+	Intrinsics intrinsics;
+
 	public NGaroVM(int dataStackSize, int addressStackSize, IMemory m, IOManager im, IReplIOManager rm,
 			ISaveImageController sic) throws IOException {
 		this.data = new Stack(dataStackSize);
@@ -80,38 +182,135 @@ public class NGaroVM {
 				out.close();
 			}
 		} catch (Exception e) {
+			rm.flush();
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * the value of the variable named on the stack, as a string at the address
+	 * under it
+	 */
+	private void rxQueryEnvironment() {
+		final String name = rxGetString();
+		final int dest = data.pop();
+		final String value = environment.get(name);
+		final int n = value == null ? 0 : value.length();
+		for (int i = 0; i < n; i++) {
+			memory.set(dest + i, value.charAt(i));
+		}
+		memory.set(dest + n, 0);
+		written(dest, n + 1);
+	}
+
 	private String rxGetString() {
-		int name = data.pop();
-		StringBuffer buf = new StringBuffer();
-		int i = 0;
-		boolean done = false;
-		while (!done) {
-			int j = memory.get(name + i);
-			if (j == 0) {
-				done = true;
-			} else {
-				buf.append((char) j);
-				i++;
+		return getString(memory, data.pop());
+	}
+
+	/**
+	 * the string at a, read from the array behind a Memory where there is one
+	 */
+	static String getString(IMemory m, int a) {
+		if (m instanceof Memory) {
+			final int[] b = ((Memory) m).array();
+			int n = 0;
+			while (b[a + n] != 0) {
+				n++;
 			}
+			final char[] c = new char[n];
+			for (int i = 0; i < n; i++) {
+				c[i] = (char) b[a + i];
+			}
+			return new String(c);
+		}
+		final StringBuilder b = new StringBuilder();
+		for (int c; (c = m.get(a)) != 0; a++) {
+			b.append((char) c);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * for devices that store into memory directly, so that the FAST and JIT
+	 * engines see the new contents
+	 */
+	void written(int a, int n) {
+		if (fast != null) {
+			fast.stored(a, n);
+		}
+	}
+
+	/**
+	 * a character to the console as port 2 has it, where anything negative
+	 * clears the screen
+	 */
+	void putc(int x) {
+		if (x < 0) {
+			for (char c = 0; c < 300; c++)
+				rm.write('\n');
+			consoleOut += 300;
+		} else {
+			rm.write((char) x);
+			consoleOut++;
 		}
-		return buf.toString();
 	}
 
-	private void handleDevices() {
+	/**
+	 * a byte from the console, or -1 at the end of its input
+	 */
+	int getc() {
+		final int b = rm.read();
+		if (b >= 0) {
+			consoleIn++;
+		}
+		return b;
+	}
+
+	/**
+	 * whether console input that has not come yet is to be waited for, as it
+	 * is in run(long) with an INonBlockingReplIOManager, rather than taken as
+	 * the end of all input
+	 */
+	boolean inputToCome() {
+		return yielding && !((INonBlockingReplIOManager) rm).ready();
+	}
+
+	/**
+	 * stops at the wait for input on port, to make the request again when the
+	 * vm is next run
+	 */
+	void park(int port) {
+		waiting = true;
+		pending = port;
+		ip--;
+	}
+
+	void handleDevices() {
 
 		if (ports.get(0) == 1) {
 			return;
 		}
 
+		// port 13 parks by itself, reading as far as the input goes
+		if (ports.get(1) == 1 && inputToCome()) {
+			park(1);
+			return;
+		}
+
+		for (int p = 1; p < waits.length; p++) {
+			if (ports.get(p) != 0) {
+				waits[p]++;
+			}
+		}
+		maxData = Math.max(maxData, data.getDepth());
+		maxAddress = Math.max(maxAddress, address.getDepth());
+
 		if (ports.get(0) == 0 && ports.get(1) == 1) {
 			final byte[] b = { 0, 0, 0 };
 			try {
-				b[0] = (byte) rm.read();
+				b[0] = (byte) getc();
 			} catch (Exception e) {
+				rm.flush();
 				System.err.println(e);
 			}
 			ports.set(1, b[0]);
@@ -119,16 +318,40 @@ public class NGaroVM {
 		}
 
 		if (ports.get(2) == 1) {
-			int x = data.pop();
-			if (x < 0) {
-				for (char c = 0; c < 300; c++)
-					rm.write('\n');
-			} else
-				rm.write((char) x);
+			putc(data.pop());
 			ports.set(2, 0);
 			ports.set(0, 1);
 		}
 
+		if (ports.get(ConsoleDevice.PORT) != 0) {
+			if (console == null) {
+				console = new ConsoleDevice(this);
+			}
+			final int r = console.handle(ports.get(ConsoleDevice.PORT));
+			if (waiting) {
+				// the device parked part way through the request
+				return;
+			}
+			ports.set(ConsoleDevice.PORT, r);
+			ports.set(0, 1);
+		}
+
+		if (ports.get(MemoryDevice.PORT) != 0) {
+			if (bulk == null) {
+				bulk = new MemoryDevice(this);
+			}
+			ports.set(MemoryDevice.PORT, bulk.handle(ports.get(MemoryDevice.PORT)));
+			ports.set(0, 1);
+		}
+
+		if (ports.get(DictionaryDevice.PORT) != 0) {
+			if (dictionary == null) {
+				dictionary = new DictionaryDevice(this);
+			}
+			ports.set(DictionaryDevice.PORT, dictionary.handle(ports.get(DictionaryDevice.PORT)));
+			ports.set(0, 1);
+		}
+
 		switch (ports.get(4)) {
 
 		case 0: {
@@ -137,7 +360,9 @@ public class NGaroVM {
 		}
 
 		case 1: {
-			saveImage(sic.getSavedImageFile());
+			if (sic != null) {
+				saveImage(sic.getSavedImageFile());
+			}
 			ports.set(0, 1);
 			ports.set(4, 0);
 			break;
@@ -203,6 +428,39 @@ public class NGaroVM {
 			break;
 		}
 
+		case -9: {
+			int slot = data.pop();
+			int n = data.pop();
+			int a = data.pop();
+			int c = im.rxReadBlock(slot, memory, a, n);
+			written(a, c);
+			ports.set(4, c);
+			break;
+		}
+
+		case -10: {
+			int slot = data.pop();
+			int n = data.pop();
+			int a = data.pop();
+			ports.set(4, im.rxWriteBlock(slot, memory, a, n));
+			break;
+		}
+
+		case -11: {
+			int slot = data.pop();
+			int n = data.pop();
+			int a = data.pop();
+			int c = im.rxReadLine(slot, memory, a, n);
+			written(a, Math.max(c, 0) + 1);
+			ports.set(4, c);
+			break;
+		}
+
+		case -12: {
+			ports.set(4, im.rxBlocks() ? -1 : 0);
+			break;
+		}
+
 		default:
 			ports.set(4, 0);
 
@@ -227,10 +485,16 @@ public class NGaroVM {
 			ports.set(0, 1);
 			break;
 		case -9:
+			rm.flush();
 			ip = memory.size();
 			ports.set(5, 0);
 			ports.set(0, 1);
 			break;
+		case -10:
+			rxQueryEnvironment();
+			ports.set(5, 0);
+			ports.set(0, 1);
+			break;
 		case -13:
 			ports.set(5, 32);
 			ports.set(0, 1);
@@ -243,12 +507,29 @@ public class NGaroVM {
 			ports.set(5, -1);
 			ports.set(0, 1);
 			break;
+		case -16:
+			ports.set(5, (int) System.nanoTime());
+			ports.set(0, 1);
+			break;
+		case -17:
+			ports.set(5, (int) (System.nanoTime() / 1000L));
+			ports.set(0, 1);
+			break;
+		case -18:
+			ports.set(5, (int) instructions);
+			ports.set(0, 1);
+			break;
+		case -19: {
+			final Runtime r = Runtime.getRuntime();
+			ports.set(5, (int) ((r.totalMemory() - r.freeMemory()) / 1024L));
+			ports.set(0, 1);
+			break;
+		}
 
 		case -2:
 		case -3:
 		case -4:
 		case -7:
-		case -10:
 		case -11:
 		case -12:
 			ports.set(5, 0);
@@ -473,6 +754,11 @@ public class NGaroVM {
 		}
 
 		default: {
+			final int kind = intrinsics == null ? -1 : intrinsics.kind(memory.get(ip));
+			if (kind >= 0) {
+				ip = intrinsics.run(kind, ip, data, address);
+				break;
+			}
 			address.push(ip);
 			ip = memory.get(ip) - 1;
 			if (memory.get(ip + 1) == 0)
@@ -485,24 +771,254 @@ public class NGaroVM {
 		}
 	}
 
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * whether calls to the kernel's combinators run natively (see Intrinsics);
+	 * on by default under FAST and JIT, and off under SWITCH, which stays the
+	 * reference for what Ngaro code does
+	 */
+	public void setIntrinsics(boolean intrinsic) {
+		this.intrinsic = intrinsic;
+	}
+
+	private boolean intrinsic() {
+		return intrinsic != null ? intrinsic : engine != Engine.SWITCH;
+	}
+
+	/**
+	 * whether run() registers an NGaroVMMXBean for the vm and sends its
+	 * counters to Flight Recorder; off unless the ngaro.monitor system
+	 * property is true
+	 */
+	public void setMonitored(boolean monitored) {
+		this.monitored = monitored;
+	}
+
+	/**
+	 * the variables getEnv sees, such as System.getenv() for a vm run from the
+	 * command line or as a CGI script
+	 */
+	public void setEnvironment(Map<String, String> environment) {
+		this.environment = environment;
+	}
+
+	/**
+	 * counts opcode sequences as they run; the vm then uses the SWITCH engine
+	 */
+	public void setProfile(OpcodeProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * samples the words running as the vm runs; the vm then uses the SWITCH
+	 * engine
+	 */
+	public void setWordProfile(WordProfile words) {
+		this.words = words;
+	}
+
+	/**
+	 * instruction dispatches that fused sequences have saved in the FAST and
+	 * JIT engines
+	 */
+	public long getDispatchesEliminated() {
+		return fast == null ? 0 : fast.getEliminated();
+	}
+
 	public void run() {
-		for (ip = 0; ip < memory.size(); ip++) {
-			process();
+		begin();
+		try {
+			if (profile != null) {
+				for (ip = 0; ip < memory.size(); ip++) {
+					profile.executed(memory, ip);
+					process();
+					instructions++;
+				}
+			} else if (words != null) {
+				words.start(this);
+				try {
+					for (ip = 0; ip < memory.size(); ip++) {
+						words.executed(ip);
+						process();
+						instructions++;
+					}
+				} finally {
+					words.stop(ip);
+				}
+			} else if (engine != Engine.SWITCH && memory instanceof Memory) {
+				ip = 0;
+				fast().run(Long.MAX_VALUE);
+			} else {
+				for (ip = 0; ip < memory.size(); ip++) {
+					process();
+					instructions++;
+				}
+			}
+		} finally {
+			end();
 		}
 	}
 
-	private static void copy(IMemory source, IMemory target, int p) {
-		for (int i = 0; i < source.size(); i++) {
-			target.set(p + i, source.get(i));
+	/**
+	 * runs about maxInstructions more instructions of the image, from where
+	 * the last call left off, or from the start if it halted; see Status.
+	 *
+	 * The budget is checked between instructions on the SWITCH engine, and
+	 * only at jumps, loops and returns on the others. Compiled code counts the
+	 * cells it runs too, but checks the budget only at backward jumps, a few
+	 * thousand cells apart, and then leaves to the interpreter at the jump; a
+	 * word without loops always runs to its return, so a slice can overrun
+	 * the budget by as much as such a word, and the words it calls, take.
+	 * Profiles are not kept. Files are flushed, and the vm unregistered if
+	 * monitored, when it halts.
+	 */
+	public Status run(long maxInstructions) {
+		if (!started) {
+			begin();
+			ip = 0;
+			started = true;
+		}
+		boolean halted = true;
+		waiting = false;
+		pending = 0;
+		yielding = rm instanceof INonBlockingReplIOManager;
+		try {
+			if (engine != Engine.SWITCH && memory instanceof Memory) {
+				fast().run(maxInstructions);
+			} else {
+				final long end = maxInstructions > Long.MAX_VALUE - instructions ? Long.MAX_VALUE
+						: instructions + maxInstructions;
+				for (; ip < memory.size() && instructions < end && !waiting; ip++) {
+					process();
+					instructions++;
+				}
+			}
+			halted = ip >= memory.size();
+		} finally {
+			yielding = false;
+			if (halted) {
+				started = false;
+				end();
+			} else {
+				rm.flush();
+			}
+		}
+		return halted ? Status.HALTED : waiting ? Status.WAITING : Status.YIELDED;
+	}
+
+	/**
+	 * runs the word at xt until it returns, as if Java had called it, on the
+	 * stacks as they are, and puts the ip back as it was; a word that exits
+	 * the vm ends the call too. See NGaroWords.
+	 */
+	void call(int xt) {
+		if (intrinsic() && intrinsics == null) {
+			intrinsics = Intrinsics.resolve(memory);
+		}
+		final int saved = ip;
+		final boolean wait = waiting;
+		final int depth = address.getDepth();
+		// a return address for the word, though it stops before returning there
+		address.push(0);
+		ip = xt;
+		waiting = false;
+		try {
+			if (engine != Engine.SWITCH && memory instanceof Memory) {
+				fast().call(depth);
+			} else {
+				for (; address.getDepth() > depth && ip < memory.size(); ip++) {
+					process();
+					instructions++;
+				}
+			}
+		} finally {
+			if (address.getDepth() > depth) {
+				address.drop(address.getDepth() - depth);
+			}
+			ip = saved;
+			waiting = wait;
+		}
+	}
+
+	/**
+	 * the port of the request a WAITING vm stopped on, which it makes again
+	 * when next run: 1 or 13 for console input; otherwise 0
+	 */
+	public int getPendingPort() {
+		return pending;
+	}
+
+	/**
+	 * ends the run(long) in progress, as if the vm had halted
+	 */
+	public void halt() {
+		if (started) {
+			started = false;
+			ip = memory.size();
+			end();
+		}
+	}
+
+	/**
+	 * clears the stacks, ports and devices, and closes any files left open,
+	 * so that the next run starts from cell 0 as a new vm on the same memory
+	 * would; stops the vm first if it is part way through run(long).
+	 * NGaroTemplate.reset() also restores the memory.
+	 */
+	public void reset() {
+		halt();
+		im.rxCloseAll();
+		data.drop(data.getDepth());
+		address.drop(address.getDepth());
+		ports.clear();
+		ip = 0;
+		waiting = false;
+		pending = 0;
+		console = null;
+		dictionary = null;
+		bulk = null;
+		fast = null;
+	}
+
+	private FastInterpreter fast() {
+		if (fast == null) {
+			fast = new FastInterpreter(this, engine == Engine.JIT);
+		}
+		return fast;
+	}
+
+	private void begin() {
+		if (intrinsic() && intrinsics == null) {
+			intrinsics = Intrinsics.resolve(memory);
+		}
+		if (monitored) {
+			monitor = new NGaroMonitor(this);
+			monitor.start();
+		}
+	}
+
+	private void end() {
+		try {
+			rm.flush();
+			im.rxFlush();
+		} finally {
+			if (monitor != null) {
+				monitor.stop();
+				monitor = null;
+			}
 		}
 	}
 
 	public static IMemory initializeMemory(File imageFile, boolean littleEndian, int totalMemorySize)
 			throws IOException {
-		IMemory mem = new Memory(totalMemorySize);
-		IMemory image = Memory.load(imageFile, true);
-		copy(image, mem, 0);
-		return mem;
+		return Memory.load(imageFile, littleEndian, totalMemorySize);
 	}
 
 }
@@ -0,0 +1,59 @@
+package com.xoba.ngaro;
+
+import java.util.List;
+
+/**
+ * What a running vm shows through JMX, as com.xoba.ngaro:type=NGaroVM,name=vm1
+ * and so on, while NGaroVM.run() lasts (see NGaroVM.setMonitored()).
+ *
+ * Instructions run in JIT compiled code are counted as it returns or bails,
+ * and the stacks' greatest depths are those seen at waits and console reads,
+ * which is where a Retro program is at the top of its interpreter loop.
+ */
+public interface NGaroVMMXBean {
+
+	public String getEngine();
+
+	public long getInstructions();
+
+	/**
+	 * over the last second or so, or since the start for the first
+	 */
+	public double getInstructionsPerSecond();
+
+	public long getUptimeMillis();
+
+	/**
+	 * the waits that found a request on each port, by port
+	 */
+	public long[] getWaits();
+
+	public long getConsoleBytesRead();
+
+	public long getConsoleBytesWritten();
+
+	public int getDataDepth();
+
+	public int getMaxDataDepth();
+
+	public int getAddressDepth();
+
+	public int getMaxAddressDepth();
+
+	/**
+	 * the first free cell, as here returns
+	 */
+	public int getHere();
+
+	/**
+	 * the files open now, where the vm uses an InputManager
+	 */
+	public List<InputManager.FileStats> getOpenFiles();
+
+	public long getFileOperations();
+
+	public long getFileBytesRead();
+
+	public long getFileBytesWritten();
+
+}
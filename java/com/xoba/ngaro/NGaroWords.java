@@ -0,0 +1,262 @@
+package com.xoba.ngaro;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Calls Retro words from Java directly, without going through the listener:
+ * a word is looked up by name once, and after that each call pushes its
+ * arguments onto the data stack, runs the word until it returns, and pops its
+ * results, at about the cost of the instructions the word itself runs.
+ *
+ * The vm must have booted, as it has once it has run to a bye or is WAITING
+ * for input under run(long), since the kernel sets up its buffers as it
+ * starts; it is left where it was. Words are found as find would find them
+ * then, the newest of each name in the dictionary from last down; find()
+ * remembers them, so forget() must be called if the dictionary changes under
+ * the names looked up. Calling a data word, such as a variable, pushes its
+ * address as the listener would.
+ *
+ * Strings pass through memory in one go, not a port request per character:
+ * pushString() copies a Java string into one of the kernel's temporary string
+ * buffers, as a string typed at the listener goes, and popString() reads the
+ * one at the address on top of the stack.
+ *
+ * Like the vm, an NGaroWords is for one thread at a time.
+ */
+public final class NGaroWords {
+
+	/**
+	 * the kernel variables holding the newest dictionary header and the top of
+	 * the heap
+	 */
+	private static final int LAST = 2;
+	private static final int HEAP = 3;
+
+	/**
+	 * a word found in the dictionary
+	 */
+	public static final class Word {
+
+		private final String name;
+
+		private final int header, xt;
+
+		private final boolean data;
+
+		private Word(String name, int header, int xt, boolean data) {
+			this.name = name;
+			this.header = header;
+			this.xt = xt;
+			this.data = data;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getHeader() {
+			return header;
+		}
+
+		public int getXt() {
+			return xt;
+		}
+
+		/**
+		 * whether the word is of the .data class, whose xt is its value
+		 */
+		public boolean isData() {
+			return data;
+		}
+
+		@Override
+		public String toString() {
+			return name + "@" + xt;
+		}
+	}
+
+	private final NGaroVM vm;
+
+	private final Map<String, Word> words = new HashMap<String, Word>();
+
+	private Word tempString;
+
+	/**
+	 * the xt of .data, once looked up
+	 */
+	private int dataClass = -1;
+
+	private int stringLength;
+
+	public NGaroWords(NGaroVM vm) {
+		this.vm = vm;
+	}
+
+	public NGaroVM getVM() {
+		return vm;
+	}
+
+	/**
+	 * the newest word of the name, or null if there is none
+	 */
+	public Word find(String name) {
+		Word w = words.get(name);
+		if (w == null) {
+			w = lookup(name);
+			if (w != null) {
+				words.put(name, w);
+			}
+		}
+		return w;
+	}
+
+	/**
+	 * the word of the name, which must be there
+	 */
+	public Word get(String name) {
+		final Word w = find(name);
+		if (w == null) {
+			throw new IllegalArgumentException(name + " not found");
+		}
+		return w;
+	}
+
+	/**
+	 * forgets the words found so far, to look them up again
+	 */
+	public void forget() {
+		words.clear();
+		tempString = null;
+		dataClass = -1;
+	}
+
+	private Word lookup(String name) {
+		if (dataClass < 0) {
+			final int d = header(".data");
+			dataClass = d == 0 ? 0 : vm.memory.get(d + 2);
+		}
+		final int h = header(name);
+		if (h == 0) {
+			return null;
+		}
+		return new Word(name, h, vm.memory.get(h + 2), dataClass != 0 && vm.memory.get(h + 1) == dataClass);
+	}
+
+	private int header(String name) {
+		final int size = vm.memory.size();
+		for (int h = vm.memory.get(LAST), n = 0; h > 0 && h + 3 < size && n < size; h = vm.memory.get(h), n++) {
+			if (named(h + 3, name)) {
+				return h;
+			}
+		}
+		return 0;
+	}
+
+	private boolean named(int a, String name) {
+		final int size = vm.memory.size();
+		for (int i = 0; i < name.length(); i++) {
+			if (a + i >= size || vm.memory.get(a + i) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return a + name.length() < size && vm.memory.get(a + name.length()) == 0;
+	}
+
+	public NGaroWords push(int v) {
+		vm.data.push(v);
+		return this;
+	}
+
+	public int pop() {
+		if (vm.data.getDepth() < 1) {
+			throw new IllegalStateException("stack empty");
+		}
+		return vm.data.pop();
+	}
+
+	public int depth() {
+		return vm.data.getDepth();
+	}
+
+	/**
+	 * runs w on whatever is on the stack, leaving its results there
+	 */
+	public void call(Word w) {
+		if (w.data) {
+			vm.data.push(w.xt);
+		} else {
+			vm.call(w.xt);
+		}
+	}
+
+	/**
+	 * pushes args, first to last, and runs w
+	 */
+	public void call(Word w, int... args) {
+		for (int a : args) {
+			vm.data.push(a);
+		}
+		call(w);
+	}
+
+	/**
+	 * runs w on args and pops the one result it leaves
+	 */
+	public int apply(Word w, int... args) {
+		call(w, args);
+		return pop();
+	}
+
+	/**
+	 * the string at a
+	 */
+	public String getString(int a) {
+		return NGaroVM.getString(vm.memory, a);
+	}
+
+	/**
+	 * writes s and a terminating zero from a on
+	 */
+	public void putString(int a, String s) {
+		final int n = s.length();
+		if (vm.memory instanceof Memory) {
+			final int[] m = ((Memory) vm.memory).array();
+			for (int i = 0; i < n; i++) {
+				m[a + i] = s.charAt(i);
+			}
+			m[a + n] = 0;
+		} else {
+			for (int i = 0; i < n; i++) {
+				vm.memory.set(a + i, s.charAt(i));
+			}
+			vm.memory.set(a + n, 0);
+		}
+		vm.written(a, n + 1);
+	}
+
+	/**
+	 * pushes the address of a temporary copy of s, which lasts until the
+	 * kernel has used each of its string buffers again; s must fit in one
+	 */
+	public void pushString(String s) {
+		if (tempString == null) {
+			tempString = get("tempString");
+			vm.call(get("STRING-LENGTH").xt);
+			stringLength = vm.data.pop();
+		}
+		if (s.length() >= stringLength) {
+			throw new IllegalArgumentException("over " + (stringLength - 1) + " characters: use putString()");
+		}
+		// past the top of the heap, which nothing has claimed yet
+		final int here = vm.memory.get(HEAP);
+		putString(here, s);
+		vm.data.push(here);
+		vm.call(tempString.xt);
+	}
+
+	public String popString() {
+		return getString(pop());
+	}
+
+}
@@ -0,0 +1,161 @@
+package com.xoba.ngaro;
+
+import static com.xoba.ngaro.NGaroVM.*;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Counts the opcode sequences the SWITCH engine executes straight through, one
+ * cell after another with no jump, call or return in between: the candidates
+ * for the fused handlers in CodeCache. Any call counts as the single symbol
+ * CALL, and sequences of 2 up to MAX_LENGTH instructions are counted.
+ *
+ * Attach one with NGaroVM.setProfile(), or run main() on some images.
+ */
+public final class OpcodeProfile {
+
+	public static final int MAX_LENGTH = 4;
+
+	private static final int CALL = VM_WAIT + 1;
+
+	private static final String[] NAMES = { "NOP", "LIT", "DUP", "DROP", "SWAP", "PUSH", "POP", "LOOP", "JUMP",
+			"RETURN", "LT_JUMP", "GT_JUMP", "NE_JUMP", "EQ_JUMP", "FETCH", "STORE", "ADD", "SUB", "MUL", "DIVMOD",
+			"AND", "OR", "XOR", "SHL", "SHR", "ZERO_EXIT", "INC", "DEC", "IN", "OUT", "WAIT", "CALL" };
+
+	private final Map<Long, long[]> counts = new HashMap<Long, long[]>();
+
+	private final int[] window = new int[MAX_LENGTH];
+	private int length;
+
+	/**
+	 * the cell that follows the last instruction in order
+	 */
+	private int next = -1;
+
+	private long instructions;
+
+	/**
+	 * called with the instruction at ip just before it runs
+	 */
+	void executed(IMemory memory, int ip) {
+		instructions++;
+		int op = memory.get(ip);
+		if (op < 0 || op > VM_WAIT) {
+			op = CALL;
+		}
+		if (ip != next) {
+			length = 0;
+		}
+		if (length == MAX_LENGTH) {
+			System.arraycopy(window, 1, window, 0, MAX_LENGTH - 1);
+			length--;
+		}
+		window[length++] = op;
+		for (int n = 2; n <= length; n++) {
+			long key = n;
+			for (int i = length - n; i < length; i++) {
+				key = key << 6 | window[i];
+			}
+			long[] c = counts.get(key);
+			if (c == null) {
+				counts.put(key, c = new long[1]);
+			}
+			c[0]++;
+		}
+		next = ip + (hasArgument(op) ? 2 : 1);
+	}
+
+	private static boolean hasArgument(int op) {
+		switch (op) {
+		case VM_LIT:
+		case VM_LOOP:
+		case VM_JUMP:
+		case VM_LT_JUMP:
+		case VM_GT_JUMP:
+		case VM_NE_JUMP:
+		case VM_EQ_JUMP:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public long getInstructions() {
+		return instructions;
+	}
+
+	/**
+	 * the name of an opcode, or CALL for VM_WAIT + 1
+	 */
+	static String opcode(int op) {
+		return NAMES[op];
+	}
+
+	private static String name(long key) {
+		int n = 0;
+		for (long k = key; k >= 64; k >>= 6) {
+			n++;
+		}
+		StringBuilder b = new StringBuilder();
+		for (int i = n - 1; i >= 0; i--) {
+			if (b.length() > 0) {
+				b.append(' ');
+			}
+			b.append(NAMES[(int) (key >> 6 * i) & 63]);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * prints the most frequent sequences of each length, with the dispatches
+	 * fusing each one would save
+	 */
+	public void print(PrintStream out, int top) {
+		out.printf("%d instructions%n", instructions);
+		for (int n = 2; n <= MAX_LENGTH; n++) {
+			List<Map.Entry<Long, long[]>> list = new ArrayList<Map.Entry<Long, long[]>>();
+			for (Map.Entry<Long, long[]> e : counts.entrySet()) {
+				if (e.getKey() >> 6 * n == n) {
+					list.add(e);
+				}
+			}
+			Collections.sort(list, new Comparator<Map.Entry<Long, long[]>>() {
+				@Override
+				public int compare(Map.Entry<Long, long[]> a, Map.Entry<Long, long[]> b) {
+					return Long.compare(b.getValue()[0], a.getValue()[0]);
+				}
+			});
+			out.printf("%n%d-grams%n", n);
+			for (int i = 0; i < top && i < list.size(); i++) {
+				long c = list.get(i).getValue()[0];
+				out.printf("%12d %5.1f%% saves %d  %s%n", c, 100.0 * c * (n - 1) / instructions, c * (n - 1),
+						name(list.get(i).getKey()));
+			}
+		}
+	}
+
+	/**
+	 * runs each image given, which should exit by itself, and prints the
+	 * profile of them all
+	 */
+	public static void main(String[] args) throws Exception {
+		OpcodeProfile p = new OpcodeProfile();
+		for (String f : args) {
+			IMemory mem = NGaroVM.initializeMemory(new File(f), true, 1000000);
+			NGaroVM vm = new NGaroVM(128, 1024, mem, new InputManager(), new ReplIOManager(), null);
+			vm.setProfile(p);
+			vm.run();
+		}
+		p.print(System.out, 15);
+	}
+
+}
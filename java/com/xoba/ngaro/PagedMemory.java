@@ -0,0 +1,286 @@
+package com.xoba.ngaro;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Memory in pages of PAGE_SIZE cells, allocated on first write and shared
+ * copy-on-write.
+ *
+ * A page that was never written is null and reads as zeros, so a large memory
+ * costs little more than the cells actually used. Up to its limit, the memory
+ * also grows: a write past size() extends it, and port 5 query -1 reports the
+ * new size from then on.
+ *
+ * fork() gives a memory that shares every page with this one; whichever of the
+ * two then writes to a shared page first gets a private copy of it. A frozen
+ * memory cannot be written at all, so any number of threads can fork from it at
+ * once, which is what NGaroTemplate does.
+ */
+public class PagedMemory implements IMemory {
+
+	public static final int PAGE_BITS = 12;
+	public static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	private static final int MASK = PAGE_SIZE - 1;
+
+	private int n;
+
+	private final int limit;
+
+	private int[][] pages;
+
+	/**
+	 * pages that only this memory sees, and may write in place
+	 */
+	private boolean[] owned;
+
+	private boolean frozen;
+
+	public PagedMemory(int n) {
+		this(n, n);
+	}
+
+	/**
+	 * n cells, which writes can grow to as many as limit
+	 */
+	public PagedMemory(int n, int limit) {
+		this(n, limit, new int[(n + MASK) >>> PAGE_BITS][]);
+	}
+
+	private PagedMemory(int n, int limit, int[][] pages) {
+		if (n > limit) {
+			throw new IllegalArgumentException(n + " > " + limit);
+		}
+		this.n = n;
+		this.limit = limit;
+		this.pages = pages;
+		this.owned = new boolean[pages.length];
+	}
+
+	/**
+	 * loads an image into a new memory of at least size cells, leaving pages
+	 * that are all zeros unallocated
+	 */
+	public static PagedMemory load(File f, boolean littleEndian, int size) throws IOException {
+		return load(f, littleEndian, size, size);
+	}
+
+	/**
+	 * as load(), with room to grow to limit cells
+	 */
+	public static PagedMemory load(File f, boolean littleEndian, int size, int limit) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = in.getChannel();
+			int cells = (int) (ch.size() / 4);
+			PagedMemory mem = new PagedMemory(Math.max(cells, size), Math.max(cells, limit));
+			if (cells > 0) {
+				IntBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, 4L * cells)
+						.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asIntBuffer();
+				for (int i = 0; b.hasRemaining(); i++) {
+					int[] page = new int[PAGE_SIZE];
+					b.get(page, 0, Math.min(PAGE_SIZE, b.remaining()));
+					if (!isZero(page)) {
+						mem.pages[i] = page;
+						mem.owned[i] = true;
+					}
+				}
+			}
+			return mem;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * a paged copy of any memory
+	 */
+	public static PagedMemory copyOf(IMemory m) {
+		PagedMemory mem = new PagedMemory(m.size());
+		for (int i = 0; i < m.size(); i++) {
+			mem.set(i, m.get(i));
+		}
+		return mem;
+	}
+
+	private static boolean isZero(int[] page) {
+		for (int v : page) {
+			if (v != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int get(int pc) {
+		if (pc < 0 || pc >= limit) {
+			throw new ArrayIndexOutOfBoundsException(pc);
+		}
+		final int i = pc >>> PAGE_BITS;
+		if (i >= pages.length) {
+			return 0;
+		}
+		final int[] page = pages[i];
+		return page == null ? 0 : page[pc & MASK];
+	}
+
+	@Override
+	public void set(int pc, int value) {
+		if (pc < 0 || pc >= limit) {
+			throw new ArrayIndexOutOfBoundsException(pc);
+		}
+		final int i = pc >>> PAGE_BITS;
+		if (i >= pages.length || pc >= n) {
+			grow(pc);
+		}
+		int[] page = pages[i];
+		if (!owned[i]) {
+			if (frozen) {
+				throw new IllegalStateException("frozen");
+			}
+			if (page == null) {
+				if (value == 0) {
+					return;
+				}
+				page = new int[PAGE_SIZE];
+			} else {
+				page = page.clone();
+			}
+			pages[i] = page;
+			owned[i] = true;
+		}
+		page[pc & MASK] = value;
+	}
+
+	private void grow(int pc) {
+		if (frozen) {
+			throw new IllegalStateException("frozen");
+		}
+		final int i = pc >>> PAGE_BITS;
+		if (i >= pages.length) {
+			int length = (int) Math.min(Math.max(i + 1L, 2L * pages.length), ((long) limit + MASK) >>> PAGE_BITS);
+			pages = Arrays.copyOf(pages, length);
+			owned = Arrays.copyOf(owned, length);
+		}
+		n = Math.max(n, pc + 1);
+	}
+
+	@Override
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * the most cells this memory can grow to
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	@Override
+	public void clear() {
+		if (frozen) {
+			throw new IllegalStateException("frozen");
+		}
+		pages = new int[pages.length][];
+		owned = new boolean[pages.length];
+	}
+
+	/**
+	 * makes this memory read-only, from now on
+	 */
+	public PagedMemory freeze() {
+		frozen = true;
+		Arrays.fill(owned, false);
+		return this;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * a writable memory with the same contents, sharing all pages with this
+	 * one until either writes to them
+	 */
+	public PagedMemory fork() {
+		if (!frozen) {
+			Arrays.fill(owned, false);
+		}
+		return new PagedMemory(n, limit, pages.clone());
+	}
+
+	/**
+	 * drops every page of this memory's own, back to the contents of from, a
+	 * frozen memory, as if it had just been forked from it
+	 */
+	public void restore(PagedMemory from) {
+		if (frozen) {
+			throw new IllegalStateException("frozen");
+		}
+		if (!from.frozen) {
+			throw new IllegalArgumentException("not frozen");
+		}
+		if (pages.length == from.pages.length) {
+			System.arraycopy(from.pages, 0, pages, 0, pages.length);
+			Arrays.fill(owned, false);
+		} else {
+			pages = from.pages.clone();
+			owned = new boolean[pages.length];
+		}
+		n = from.n;
+	}
+
+	/**
+	 * pages allocated for this memory alone, each of PAGE_SIZE cells
+	 */
+	public int getPrivatePages() {
+		int c = 0;
+		for (boolean b : owned) {
+			if (b) {
+				c++;
+			}
+		}
+		return c;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof IMemory) {
+			IMemory m = (IMemory) o;
+			if (m.size() != this.size()) {
+				return false;
+			}
+			for (int i = 0; i < n; i++) {
+				if (this.get(i) != m.get(i)) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * the same as Memory's for the same contents
+	 */
+	@Override
+	public int hashCode() {
+		int h = 1;
+		for (int i = 0; i < n; i++) {
+			h = 31 * h + get(i);
+		}
+		return h;
+	}
+
+}
@@ -7,11 +7,22 @@ import java.io.InputStream;
 
 import com.xoba.ngaro.inf.IReplIOManager;
 
+/**
+ * Reads from included files and then the keyboard, and writes to a
+ * ConsoleOutput, which is flushed whenever the keyboard is about to be read.
+ */
 public class ReplIOManager implements IReplIOManager {
 
 	private final java.util.Stack<InputStream> stack = new java.util.Stack<InputStream>();
 
+	private final ConsoleOutput out;
+
 	public ReplIOManager() {
+		this(new ConsoleOutput(System.out));
+	}
+
+	public ReplIOManager(ConsoleOutput out) {
+		this.out = out;
 		stack.push(System.in);
 	}
 
@@ -29,6 +40,9 @@ public class ReplIOManager implements IReplIOManager {
 		try {
 			while (stack.size() > 0) {
 				InputStream in = stack.peek();
+				if (in == System.in) {
+					out.flush();
+				}
 				int b = in.read();
 				if (b >= 0) {
 					return b;
@@ -45,7 +59,12 @@ public class ReplIOManager implements IReplIOManager {
 
 	@Override
 	public void write(int c) {
-		System.out.write(c);
+		out.write(c);
+	}
+
+	@Override
+	public void flush() {
+		out.flush();
 	}
 
 }
@@ -0,0 +1,61 @@
+package com.xoba.ngaro;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * The counters of a running vm, taken once a second.
+ */
+@Name("com.xoba.ngaro.Sample")
+@Label("Ngaro VM")
+@Category("Ngaro")
+@Description("Counters of a running vm")
+@Period("1 s")
+@StackTrace(false)
+final class SampleEvent extends jdk.jfr.Event {
+
+	@Label("VM")
+	String vm;
+
+	@Label("Engine")
+	String engine;
+
+	@Label("Instructions")
+	long instructions;
+
+	@Label("Instructions per Second")
+	double instructionsPerSecond;
+
+	@Label("Data Depth")
+	int dataDepth;
+
+	@Label("Max Data Depth")
+	int maxDataDepth;
+
+	@Label("Address Depth")
+	int addressDepth;
+
+	@Label("Max Address Depth")
+	int maxAddressDepth;
+
+	@Label("Heap")
+	@Description("The first free cell, as here returns")
+	int here;
+
+	@Label("Console Read")
+	@DataAmount
+	long consoleRead;
+
+	@Label("Console Written")
+	@DataAmount
+	long consoleWritten;
+
+	@Label("Open Files")
+	int openFiles;
+
+}
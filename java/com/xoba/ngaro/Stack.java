@@ -4,31 +4,52 @@ import com.xoba.ngaro.inf.IStack;
 
 public class Stack implements IStack {
 
+	/**
+	 * element i lives at data[i + 1], so the top of a stack of depth sp is always
+	 * data[sp]; data[0] is a spare cell that lets FastInterpreter spill a cached
+	 * top-of-stack without checking for an empty stack.
+	 */
 	private final int[] data;
 	private int sp;
 
 	public Stack(int n) {
-		this.data = new int[n];
+		this.data = new int[n + 1];
 	}
 
 	@Override
 	public void push(int v) {
-		data[sp++] = v;
+		data[++sp] = v;
 	}
 
 	@Override
 	public int pop() {
-		return data[--sp];
+		if (sp < 1) {
+			throw underflow();
+		}
+		return data[sp--];
 	}
 
 	@Override
 	public int peek() {
-		return data[sp - 1];
+		if (sp < 1) {
+			throw underflow();
+		}
+		return data[sp];
 	}
 
 	@Override
 	public int peek2() {
-		return data[sp - 2];
+		if (sp < 2) {
+			throw underflow();
+		}
+		return data[sp - 1];
+	}
+
+	/**
+	 * what reading below the bottom threw before data[0] was spare
+	 */
+	private ArrayIndexOutOfBoundsException underflow() {
+		return new ArrayIndexOutOfBoundsException("Index -1 out of bounds for length " + (data.length - 1));
 	}
 
 	@Override
@@ -41,4 +62,12 @@ public class Stack implements IStack {
 		return sp;
 	}
 
+	int[] array() {
+		return data;
+	}
+
+	void setDepth(int sp) {
+		this.sp = sp;
+	}
+
 }
\ No newline at end of file
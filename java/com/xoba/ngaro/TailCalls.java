@@ -0,0 +1,192 @@
+package com.xoba.ngaro;
+
+import static com.xoba.ngaro.NGaroVM.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which calls in tail position, a call followed by VM_RETURN, CodeCache
+ * may decode as jumps. The caller's return address is then never pushed, so
+ * the callee returns straight to the caller's caller and the address stack
+ * only holds the frames that remain.
+ *
+ * That is only safe for a callee whose pop depth is zero: nothing it runs ever
+ * looks below its own frame, where the missing return address would have
+ * been. The check is conservative. Every cell the callee reaches has to keep
+ * its part of the address stack balanced, it may only return at depth zero,
+ * and everything it calls has to be safe too, apart from itself and quote,
+ * which only reaches the return address of its own call. do, and any other
+ * word that returns to a computed address, is unsafe, and so is every word
+ * that calls it.
+ */
+final class TailCalls {
+
+	private static final int MAX_CELLS = 256;
+
+	private final int[] m;
+
+	private final Map<Integer, Boolean> safe = new HashMap<Integer, Boolean>();
+
+	/**
+	 * words being checked, to stop at mutual recursion
+	 */
+	private final Set<Integer> active = new HashSet<Integer>();
+
+	/**
+	 * every cell some result depends on
+	 */
+	private final BitSet watch = new BitSet();
+
+	TailCalls(int[] m) {
+		this.m = m;
+	}
+
+	/**
+	 * whether the call at cell a is followed by VM_RETURN
+	 */
+	boolean isTail(int a) {
+		return a + 1 < m.length && m[a + 1] == VM_RETURN;
+	}
+
+	/**
+	 * whether the word entered at cell e can be called without its return
+	 * address
+	 */
+	boolean safe(int e) {
+		Boolean b = safe.get(e);
+		if (b == null) {
+			if (!active.add(e)) {
+				return false;
+			}
+			b = check(e);
+			active.remove(e);
+			safe.put(e, b);
+		}
+		return b;
+	}
+
+	/**
+	 * called for every store; true if it changed cells some result depends
+	 * on, which are then all forgotten
+	 */
+	boolean stored(int a) {
+		if (!watch.get(a)) {
+			return false;
+		}
+		safe.clear();
+		watch.clear();
+		return true;
+	}
+
+	private boolean check(int entry) {
+		Map<Integer, Integer> depth = new HashMap<Integer, Integer>();
+		LinkedList<int[]> work = new LinkedList<int[]>();
+		work.add(new int[] { entry, 0 });
+		while (!work.isEmpty()) {
+			final int[] w = work.removeFirst();
+			final int c = w[0], d = w[1];
+			if (c < 0 || c >= m.length - 1) {
+				return false;
+			}
+			Integer seen = depth.get(c);
+			if (seen != null) {
+				if (seen != d) {
+					return false;
+				}
+				continue;
+			}
+			if (depth.size() == MAX_CELLS) {
+				return false;
+			}
+			depth.put(c, d);
+			watch.set(c);
+			final int op = m[c];
+			switch (op) {
+			case VM_LIT:
+				watch.set(c + 1);
+				work.add(new int[] { c + 2, d });
+				break;
+			case VM_LOOP:
+			case VM_LT_JUMP:
+			case VM_GT_JUMP:
+			case VM_NE_JUMP:
+			case VM_EQ_JUMP:
+				watch.set(c + 1);
+				work.add(new int[] { c + 2, d });
+				work.add(new int[] { target(m[c + 1]), d });
+				break;
+			case VM_JUMP:
+				watch.set(c + 1);
+				work.add(new int[] { target(m[c + 1]), d });
+				break;
+			case VM_PUSH:
+				work.add(new int[] { c + 1, d + 1 });
+				break;
+			case VM_POP:
+				if (d == 0) {
+					return false;
+				}
+				work.add(new int[] { c + 1, d - 1 });
+				break;
+			case VM_RETURN:
+				if (d != 0) {
+					return false;
+				}
+				break;
+			case VM_ZERO_EXIT:
+				if (d != 0) {
+					return false;
+				}
+				work.add(new int[] { c + 1, d });
+				break;
+			default:
+				if (op < 0 || op > VM_WAIT) {
+					final int t = target(op);
+					if (isQuote(t)) {
+						watch.set(t, t + 8);
+						watch.set(c + 1);
+						work.add(new int[] { target(m[c + 1]), d });
+					} else if (t == entry || safe(t)) {
+						work.add(new int[] { c + 1, d });
+					} else {
+						return false;
+					}
+				} else {
+					work.add(new int[] { c + 1, d });
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * the first cell run after a transfer to x, watching the padding skipped
+	 */
+	private int target(int x) {
+		int ip = x - 1;
+		for (int i = 0; i < 2 && ip + 1 >= 0 && ip + 1 < m.length && m[ip + 1] == 0; i++) {
+			watch.set(ip + 1);
+			ip++;
+		}
+		return ip + 1;
+	}
+
+	private boolean isQuote(int e) {
+		final int[] body = { VM_POP, VM_INC, VM_DUP, VM_FETCH, VM_DEC, VM_PUSH, VM_INC, VM_RETURN };
+		if (e < 0 || e + body.length > m.length) {
+			return false;
+		}
+		for (int i = 0; i < body.length; i++) {
+			if (m[e + i] != body[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
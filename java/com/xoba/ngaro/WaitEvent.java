@@ -0,0 +1,33 @@
+package com.xoba.ngaro;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * The waits a running vm made on one port in the last period.
+ */
+@Name("com.xoba.ngaro.Waits")
+@Label("Ngaro Waits")
+@Category("Ngaro")
+@Description("Waits on a device port since the last sample, for ports with any")
+@Period("1 s")
+@StackTrace(false)
+final class WaitEvent extends jdk.jfr.Event {
+
+	@Label("VM")
+	String vm;
+
+	@Label("Port")
+	int port;
+
+	@Label("Waits")
+	long waits;
+
+	@Label("Total Waits")
+	long total;
+
+}
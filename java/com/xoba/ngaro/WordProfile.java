@@ -0,0 +1,332 @@
+package com.xoba.ngaro;
+
+import static com.xoba.ngaro.NGaroVM.*;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.xoba.ngaro.inf.IMemory;
+
+/**
+ * Counts the opcodes a vm executes and the calls to each address, and samples
+ * where its time goes, word by word, for finding the hot paths in a Retro
+ * program.
+ *
+ * Every PERIOD instructions the time since the last sample goes to the stack
+ * of words running: the word holding the ip, under the words holding each
+ * call on the address stack. Cells on the address stack that are not return
+ * addresses, such as loop counters, are left out where they can be told
+ * apart: a return address is a cell holding a call, or one before a call that
+ * Intrinsics returns to.
+ *
+ * Names come from the dictionary headers in memory when the run ends: the
+ * words reachable from last, and those of each chain as chain'word. A cell
+ * belongs to the word with the nearest start at or below it, so quotes count
+ * as part of the word they are in, and so do words with no header, such as
+ * the kernel's internal ones and those hidden by {{ and }}, as part of the
+ * word before them.
+ *
+ * Attach one with NGaroVM.setWordProfile(), or run main() on some images; the
+ * vm then runs a loop of its own on the SWITCH engine, so that without one
+ * nothing is counted at all. writeCollapsed() writes the samples in the
+ * collapsed stack format that flame graph tools read.
+ */
+public final class WordProfile {
+
+	public static final int DEFAULT_PERIOD = 1000;
+
+	private static final int CALL = VM_WAIT + 1;
+
+	/**
+	 * the kernel variable holding the newest dictionary header
+	 */
+	private static final int LAST = 2;
+
+	private static final int MAX_NAME = 64;
+
+	private final int period;
+
+	private final long[] opcodes = new long[CALL + 1];
+
+	/**
+	 * calls, self ns and total ns by word
+	 */
+	private final Map<String, long[]> words = new HashMap<String, long[]>();
+
+	/**
+	 * ns by stack of word names, outermost first
+	 */
+	private final Map<String, long[]> collapsed = new HashMap<String, long[]>();
+
+	// the run in progress
+
+	private IMemory memory;
+	private Stack address;
+	private long[] calls;
+	private final Map<String, long[]> stacks = new HashMap<String, long[]>();
+	private int countdown;
+	private long then;
+
+	public WordProfile() {
+		this(DEFAULT_PERIOD);
+	}
+
+	/**
+	 * samples every period instructions
+	 */
+	public WordProfile(int period) {
+		this.period = period;
+	}
+
+	void start(NGaroVM vm) {
+		memory = vm.memory;
+		address = (Stack) vm.address;
+		calls = new long[1024];
+		stacks.clear();
+		countdown = period;
+		then = System.nanoTime();
+	}
+
+	/**
+	 * called with the instruction at ip just before it runs
+	 */
+	void executed(int ip) {
+		final int op = memory.get(ip);
+		if (op < 0 || op > VM_WAIT) {
+			opcodes[CALL]++;
+			if (op >= 0) {
+				if (op >= calls.length) {
+					calls = Arrays.copyOf(calls, Math.max(op + 1, 2 * calls.length));
+				}
+				calls[op]++;
+			}
+		} else {
+			opcodes[op]++;
+		}
+		if (--countdown == 0) {
+			countdown = period;
+			sample(ip);
+		}
+	}
+
+	private void sample(int ip) {
+		final long now = System.nanoTime();
+		final int[] a = address.array();
+		StringBuilder b = new StringBuilder();
+		for (int i = 1; i <= address.getDepth(); i++) {
+			if (returns(a, i)) {
+				b.append(a[i]).append(';');
+			}
+		}
+		b.append(ip);
+		final String key = b.toString();
+		long[] t = stacks.get(key);
+		if (t == null) {
+			stacks.put(key, t = new long[1]);
+		}
+		t[0] += now - then;
+		then = now;
+	}
+
+	/**
+	 * whether address stack entry i looks like a return address
+	 */
+	private boolean returns(int[] a, int i) {
+		final int v = a[i];
+		if (v < 0 || v + 1 >= memory.size()) {
+			return false;
+		}
+		final int op = memory.get(v);
+		return op < 0 || op > VM_WAIT || i > 1 && a[i - 1] == Intrinsics.mark(v + 1);
+	}
+
+	/**
+	 * takes a last sample and adds the run to the totals under the names of
+	 * its words
+	 */
+	void stop(int ip) {
+		sample(Math.min(Math.max(ip, 0), memory.size() - 1));
+		final TreeMap<Integer, String> names = names(memory);
+		for (int target = 0; target < calls.length; target++) {
+			if (calls[target] > 0) {
+				totals(name(names, target))[0] += calls[target];
+			}
+		}
+		for (Map.Entry<String, long[]> e : stacks.entrySet()) {
+			final long t = e.getValue()[0];
+			Set<String> seen = new HashSet<String>();
+			StringBuilder b = new StringBuilder();
+			String leaf = null;
+			for (String frame : e.getKey().split(";")) {
+				leaf = name(names, Integer.parseInt(frame));
+				if (seen.add(leaf)) {
+					totals(leaf)[2] += t;
+				}
+				if (b.length() > 0) {
+					b.append(';');
+				}
+				b.append(leaf);
+			}
+			totals(leaf)[1] += t;
+			long[] c = collapsed.get(b.toString());
+			if (c == null) {
+				collapsed.put(b.toString(), c = new long[1]);
+			}
+			c[0] += t;
+		}
+		stacks.clear();
+		calls = null;
+		memory = null;
+		address = null;
+	}
+
+	private long[] totals(String word) {
+		long[] t = words.get(word);
+		if (t == null) {
+			words.put(word, t = new long[3]);
+		}
+		return t;
+	}
+
+	private static String name(TreeMap<Integer, String> names, int a) {
+		Map.Entry<Integer, String> e = names.floorEntry(a);
+		return e == null ? "@" + a : e.getValue();
+	}
+
+	/**
+	 * the name of each word by where it starts
+	 */
+	private static TreeMap<Integer, String> names(IMemory m) {
+		TreeMap<Integer, String> names = new TreeMap<Integer, String>();
+		walk(m, m.get(LAST), "", names, new HashSet<Integer>());
+		return names;
+	}
+
+	private static void walk(IMemory m, int h, String prefix, Map<Integer, String> names, Set<Integer> headers) {
+		for (int n = 0; n < m.size() && !headers.contains(h); n++) {
+			final String name = header(m, h);
+			if (name == null) {
+				return;
+			}
+			headers.add(h);
+			// a closed chain's header holds its newest word where a word has its
+			// xt, which otherwise follows the name
+			final int xt = m.get(h + 2);
+			if (name.endsWith("'") && xt != h + 4 + name.length() && header(m, xt) != null) {
+				walk(m, xt, prefix + name, names, headers);
+			} else {
+				names.put(xt, prefix + name);
+			}
+			h = m.get(h);
+		}
+	}
+
+	/**
+	 * the name in what looks like a header at h, or null
+	 */
+	private static String header(IMemory m, int h) {
+		if (h <= 0 || h + 3 >= m.size() || m.get(h) < 0 || m.get(h) >= h) {
+			return null;
+		}
+		final int xt = m.get(h + 2);
+		if (xt <= 0 || xt >= m.size()) {
+			return null;
+		}
+		StringBuilder b = new StringBuilder();
+		for (int a = h + 3; a < m.size() && b.length() <= MAX_NAME; a++) {
+			final int c = m.get(a);
+			if (c == 0) {
+				return b.length() == 0 ? null : b.toString();
+			} else if (c <= 32 || c > 126) {
+				return null;
+			}
+			b.append((char) c);
+		}
+		return null;
+	}
+
+	public long getInstructions() {
+		long n = 0;
+		for (long c : opcodes) {
+			n += c;
+		}
+		return n;
+	}
+
+	/**
+	 * prints the opcodes executed and the words taking the most time of their
+	 * own, with their calls and time including what they call
+	 */
+	public void print(PrintStream out, int top) {
+		final long instructions = getInstructions();
+		out.printf("%d instructions%n", instructions);
+		for (int op = 0; op < opcodes.length; op++) {
+			if (opcodes[op] > 0) {
+				out.printf("%14d %5.1f%%  %s%n", opcodes[op], 100.0 * opcodes[op] / instructions,
+						OpcodeProfile.opcode(op));
+			}
+		}
+		long time = 0;
+		for (long[] t : words.values()) {
+			time += t[1];
+		}
+		List<Map.Entry<String, long[]>> list = new ArrayList<Map.Entry<String, long[]>>(words.entrySet());
+		Collections.sort(list, new Comparator<Map.Entry<String, long[]>>() {
+			@Override
+			public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+				return Long.compare(b.getValue()[1], a.getValue()[1]);
+			}
+		});
+		out.printf("%n%12s %10s %6s %10s  %s%n", "calls", "self ms", "self", "total ms", "word");
+		for (int i = 0; i < top && i < list.size(); i++) {
+			long[] t = list.get(i).getValue();
+			out.printf("%12d %10.1f %5.1f%% %10.1f  %s%n", t[0], t[1] / 1e6, time == 0 ? 0 : 100.0 * t[1] / time,
+					t[2] / 1e6, list.get(i).getKey());
+		}
+	}
+
+	/**
+	 * writes a line for each stack of words sampled, its names separated by
+	 * semicolons from the outermost in, then the microseconds spent there
+	 */
+	public void writeCollapsed(PrintStream out) {
+		for (Map.Entry<String, long[]> e : new TreeMap<String, long[]>(collapsed).entrySet()) {
+			final long us = e.getValue()[0] / 1000;
+			if (us > 0) {
+				out.printf("%s %d%n", e.getKey(), us);
+			}
+		}
+	}
+
+	/**
+	 * runs each image given, which should exit by itself, prints the profile
+	 * of them all and writes the collapsed stacks to profile.folded
+	 */
+	public static void main(String[] args) throws Exception {
+		WordProfile p = new WordProfile();
+		for (String f : args) {
+			IMemory mem = NGaroVM.initializeMemory(new File(f), true, 1000000);
+			NGaroVM vm = new NGaroVM(128, 1024, mem, new InputManager(), new ReplIOManager(), null);
+			vm.setWordProfile(p);
+			vm.run();
+		}
+		p.print(System.out, 25);
+		PrintStream out = new PrintStream(new File("profile.folded"));
+		try {
+			p.writeCollapsed(out);
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,16 @@
+package com.xoba.ngaro.inf;
+
+/**
+ * A console that says when its input arrives, so that a vm WAITING on it need
+ * hold no thread: NGaroScheduler parks the vm and has it run again from the
+ * callback.
+ */
+public interface IAsyncReplIOManager extends INonBlockingReplIOManager {
+
+	/**
+	 * runs r once, when ready() turns true, on the thread that made it so, or
+	 * at once if it already is
+	 */
+	public void whenReady(Runnable r);
+
+}
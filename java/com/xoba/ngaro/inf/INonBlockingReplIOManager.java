@@ -0,0 +1,22 @@
+package com.xoba.ngaro.inf;
+
+/**
+ * A console whose input may not have arrived yet. A vm run a slice at a time
+ * with NGaroVM.run(long) asks ready() before it reads, and where there is
+ * nothing to read stops at the wait and returns WAITING instead of blocking.
+ */
+public interface INonBlockingReplIOManager extends IReplIOManager {
+
+	/**
+	 * whether read() will not block before the end of a line, or of all input
+	 */
+	public boolean ready();
+
+	/**
+	 * whether the vm, reading a token at a time through port 13, waits for
+	 * one or for the rest of one, which any input at all goes on with; ready()
+	 * is then true once there is some, rather than a whole line
+	 */
+	public void setAnyInput(boolean any);
+
+}
@@ -11,6 +11,36 @@ public interface IOManager {
 
 	public int rxWriteFile(int handle, int c);
 
+	/**
+	 * whether the block operations below are there, for port 4 op -12; they
+	 * are not, and each returns -1, unless an IOManager provides them
+	 */
+	public default boolean rxBlocks() {
+		return false;
+	}
+
+	/**
+	 * reads up to n bytes into cells a to a+n-1 of m, returning how many
+	 */
+	public default int rxReadBlock(int handle, IMemory m, int a, int n) {
+		return -1;
+	}
+
+	/**
+	 * writes the bytes in cells a to a+n-1 of m, returning how many
+	 */
+	public default int rxWriteBlock(int handle, IMemory m, int a, int n) {
+		return -1;
+	}
+
+	/**
+	 * reads the rest of a line, up to n bytes, into cells from a on with a zero
+	 * after them, returning how many; -1 at end of file
+	 */
+	public default int rxReadLine(int handle, IMemory m, int a, int n) {
+		return -1;
+	}
+
 	public int rxCloseFile(int handle);
 
 	public int rxGetFilePosition(int handle);
@@ -21,4 +51,17 @@ public interface IOManager {
 
 	public int rxDeleteFile(String name);
 
-}
\ No newline at end of file
+	/**
+	 * writes out anything open files still hold in buffers
+	 */
+	public default void rxFlush() {
+	}
+
+	/**
+	 * closes every file still open, writing out what it holds, as the end of
+	 * the process would
+	 */
+	public default void rxCloseAll() {
+	}
+
+}
@@ -16,4 +16,10 @@ public interface IReplIOManager {
 
 	public void write(int c);
 
+	/**
+	 * makes sure everything written so far has been seen
+	 */
+	public default void flush() {
+	}
+
 }